@@ -3,6 +3,8 @@ import me.alchzh.antenna_control.controller.AntennaScript;
 import me.alchzh.antenna_control.controller.AntennaScriptInstruction;
 import me.alchzh.antenna_control.device.AntennaDevice;
 import me.alchzh.antenna_control.device.AntennaEvent;
+import me.alchzh.antenna_control.device.ConflatingListener;
+import me.alchzh.antenna_control.device.EventRing;
 import me.alchzh.antenna_control.network.NetworkAntennaDevice;
 
 import javax.swing.*;
@@ -11,6 +13,7 @@ import javax.swing.text.DefaultCaret;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
+import java.util.EnumSet;
 
 import static me.alchzh.antenna_control.util.Units.d;
 
@@ -33,6 +36,10 @@ public class ClientControl {
     private JButton saveLogAsButton;
 
     private MeasurementMonitor mm;
+    /**
+     * Values of the measurement being shown. Only used on the Swing thread.
+     */
+    private float[] measurementValues = new float[0];
 
     private AntennaDevice device;
     private AntennaController controller;
@@ -44,22 +51,42 @@ public class ClientControl {
 
         try {
             System.out.println("Attempting to connect");
+            if (controller != null) {
+                controller.close();
+            }
+
             device = new NetworkAntennaDevice(hostField.getText(), (Integer) portSpinner.getValue());
             controller = new AntennaController(device);
-
-            controller.addEventListener((AntennaEvent event) -> {
-                if (event.type == AntennaEvent.Type.MEASUREMENT) {
+            // The log is echoed straight to the text area, a batch at a time
+            controller.getLog().setOutput(new PrintStream(new TextAreaOutputStream(controllerTextArea)));
+            // Keep Swing updates off the network read thread
+            controller.enableAsyncDispatch(4096, EventRing.WaitStrategy.BLOCKING, EventRing.OverflowPolicy.DROP_OLDEST);
+
+            // Only the events that change what the panel shows, run on the Swing thread.
+            // A CURRENT_STATE the panel hasn't shown yet is replaced by the newest one instead of queueing up.
+            controller.addEventListener(EnumSet.of(
+                    AntennaEvent.Type.MEASUREMENT,
+                    AntennaEvent.Type.MEASUREMENT_INT16,
+                    AntennaEvent.Type.BASE_TIME,
+                    AntennaEvent.Type.CURRENT_STATE,
+                    AntennaEvent.Type.MOVE_FINISHED,
+                    AntennaEvent.Type.MOVE_CANCELED), new ConflatingListener((AntennaEvent event) -> {
+                if (event.type == AntennaEvent.Type.MEASUREMENT || event.type == AntennaEvent.Type.MEASUREMENT_INT16) {
                     if (mm == null) {
                         mm = MeasurementMonitor.showMeasurementFrame();
                     }
 
-                    mm.addMeasurement(controller.getAz(), controller.getEl(), event.data);
+                    if (measurementValues.length < event.getMeasurementCount()) {
+                        measurementValues = new float[event.getMeasurementCount()];
+                    }
+                    int count = event.getMeasurements(measurementValues);
+                    mm.addMeasurement(controller.getAz(), controller.getEl(), measurementValues, count);
                 } else if (event.type == AntennaEvent.Type.BASE_TIME) {
                     baseTimeField.setText(AntennaController.dtf.format(controller.getBaseTime()));
                 }
 
                 updateFields();
-            });
+            }, SwingUtilities::invokeLater, EnumSet.of(AntennaEvent.Type.CURRENT_STATE)));
         } catch (InterruptedException e) { e.printStackTrace(); }
     }
 
@@ -151,21 +178,14 @@ public class ClientControl {
             file = new File(file.getAbsolutePath() + ".log");
         }
 
-        BufferedWriter outFile = null;
-        try {
-            outFile = new BufferedWriter(new FileWriter(file));
+        if (controller == null) {
+            return;
+        }
 
-            controllerTextArea.write(outFile);
+        try {
+            controller.getLog().export(file.toPath());
         } catch (IOException ex) {
             ex.printStackTrace();
-        } finally {
-            if (outFile != null) {
-                try {
-                    outFile.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
         }
     }
 }
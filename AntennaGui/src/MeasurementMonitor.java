@@ -4,8 +4,6 @@ import javax.swing.text.DefaultCaret;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 import static me.alchzh.antenna_control.util.Hex.bytesToHex;
 import static me.alchzh.antenna_control.util.Units.d;
@@ -14,7 +12,6 @@ public class MeasurementMonitor {
     private JTextArea measurementTextArea;
     private JPanel mainPanel;
     private JButton saveDataAsButton;
-    private ByteBuffer dataBuffer = ByteBuffer.allocate(1024);
 
     public MeasurementMonitor() {
         DefaultCaret caret = (DefaultCaret) measurementTextArea.getCaret();
@@ -22,19 +19,15 @@ public class MeasurementMonitor {
         saveDataAsButton.addActionListener(e -> { saveAs(); });
     }
 
-    public void addMeasurement(int az, int el, byte[] data) {
-        dataBuffer.clear();
-        dataBuffer.put(data);
-        dataBuffer.flip();
-
-        int count = dataBuffer.getInt();
-        float[] dataValues = new float[count];
+    public void addMeasurement(int az, int el, float[] values, int count) {
+        StringBuilder line = new StringBuilder(String.format("%.3f %.3f : [", d(az), d(el)));
 
         for (int i = 0; i < count; i++) {
-            dataValues[i] = dataBuffer.getFloat();
+            line.append(values[i]);
+            if (i < count - 1) line.append(", ");
         }
 
-        measurementTextArea.append(String.format("%.3f %.3f : %s \n", d(az), d(el), Arrays.toString(dataValues)));
+        measurementTextArea.append(line.append("] \n").toString());
     }
 
     private void createUIComponents() {
@@ -1,5 +1,6 @@
 import javax.swing.*;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 
 import static javax.swing.SwingUtilities.invokeLater;
 
@@ -23,4 +24,11 @@ public class TextAreaOutputStream extends OutputStream {
     public void write(int b) {
         invokeLater(() -> textArea.append(String.valueOf((char)b)));
     }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        // One update of the text area per write, not per byte
+        String text = new String(b, off, len, StandardCharsets.ISO_8859_1);
+        invokeLater(() -> textArea.append(text));
+    }
 }
\ No newline at end of file
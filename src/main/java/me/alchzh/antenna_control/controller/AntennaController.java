@@ -2,30 +2,37 @@ package me.alchzh.antenna_control.controller;
 
 import me.alchzh.antenna_control.device.*;
 import me.alchzh.antenna_control.network.NetworkAntennaDevice;
+import me.alchzh.antenna_control.util.Bytes;
+import me.alchzh.antenna_control.util.LatencyHistogram;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import static me.alchzh.antenna_control.util.Units.d;
 
 /**
  * Controls a device by running scripts and outputting to log
+ * Commands submitted through the controller are timed: command to COMMAND_ISSUED (ack) and, for submitCommandAsync,
+ * command to the event that completes it, per command type. With command tagging on, every command carries a
+ * correlation id so responses are matched exactly even when commands are pipelined or other clients share the device.
  */
-public class AntennaController extends EventEmitterImpl<AntennaEvent> {
+public class AntennaController extends AntennaEventEmitter implements AntennaDevice {
     /**
      * The default log time format
      */
     public static final DateTimeFormatter dtf =
             DateTimeFormatter.ofPattern("yyyy-MM-dd hh:mm:ss.SSS ");
-    private static final Object POWERON_MONITOR = new Object();
 
     private final AntennaDevice device;
     /**
@@ -38,16 +45,49 @@ public class AntennaController extends EventEmitterImpl<AntennaEvent> {
     private Future<?> sf;
     private AntennaScript.AntennaScriptRunner activeRunner;
 
+    private volatile boolean commandTagging = false;
+    private final AtomicInteger lastCommandId = new AtomicInteger();
+    /**
+     * Commands submitted through the controller that haven't completed yet, oldest first
+     */
+    private final Queue<SentCommand> inFlight = new ConcurrentLinkedQueue<>();
+    /**
+     * Longest a command stays in inFlight without being answered
+     */
+    private static final long IN_FLIGHT_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+    private final Map<AntennaCommand.Type, LatencyHistogram> ackLatency = new EnumMap<>(AntennaCommand.Type.class);
+    private final Map<AntennaCommand.Type, LatencyHistogram> completionLatency =
+            new EnumMap<>(AntennaCommand.Type.class);
+
     /**
      * The baseTime is initially set to unix epoch before the device updates us
      */
     private ZonedDateTime baseTime = ZonedDateTime.ofInstant(Instant.EPOCH, ZoneId.of("UTC"));
+    private long baseTimeMillis = 0;
+    private final AntennaLog log = new AntennaLog(AntennaLog.DEFAULT_CAPACITY);
+    private final Listener<AntennaEvent> deviceListener;
+    private volatile MeasurementListener[] measurementListeners = new MeasurementListener[0];
 
 
     public ZonedDateTime getBaseTime() {
         return baseTime;
     }
 
+    /**
+     * @param time Device time in milliseconds after the baseTime
+     * @return The same time in milliseconds since the epoch
+     */
+    public long toEpochMilli(int time) {
+        return baseTimeMillis + time;
+    }
+
+    /**
+     * @return The log of every event from the device
+     */
+    public AntennaLog getLog() {
+        return log;
+    }
+
     private int az;
     private int el;
     private int startAz;
@@ -88,6 +128,26 @@ public class AntennaController extends EventEmitterImpl<AntennaEvent> {
         return baseEl;
     }
 
+    public int getMinAz() {
+        return minAz;
+    }
+
+    public int getMaxAz() {
+        return maxAz;
+    }
+
+    public int getMinEl() {
+        return minEl;
+    }
+
+    public int getMaxEl() {
+        return maxEl;
+    }
+
+    public int getSpeed() {
+        return speed;
+    }
+
     public int getLastEventTime() {
         return lastEventTime;
     }
@@ -106,16 +166,32 @@ public class AntennaController extends EventEmitterImpl<AntennaEvent> {
     public AntennaController(AntennaDevice device) {
         this.device = device;
 
+        for (AntennaCommand.Type type : AntennaCommand.Type.values()) {
+            ackLatency.put(type, new LatencyHistogram());
+            completionLatency.put(type, new LatencyHistogram());
+        }
+
         // Add our logging event listener
-        device.addEventListener((AntennaEvent event) -> {
+        deviceListener = (AntennaEvent event) -> {
             lastEventTime = event.time;
             lastNanoTime = System.nanoTime();
 
-            String log = makeLogString(event);
-            System.out.printf("%s %s\n", getFormattedTime(event.time), log);
+            if (event.type == AntennaEvent.Type.COMMAND_ISSUED) {
+                acknowledge(event, lastNanoTime);
+            }
+
+            updateState(event);
+            log.append(event, baseTimeMillis + event.time);
+
+            if (event.type == AntennaEvent.Type.MEASUREMENT || event.type == AntennaEvent.Type.MEASUREMENT_INT16) {
+                for (MeasurementListener listener : measurementListeners) {
+                    listener.measurementReceived(event, baseTimeMillis + event.time, az, el);
+                }
+            }
 
             sendEvent(event);
-        });
+        };
+        device.addEventListener(deviceListener);
     }
 
     /**
@@ -129,6 +205,7 @@ public class AntennaController extends EventEmitterImpl<AntennaEvent> {
         AntennaDevice device = new NetworkAntennaDevice("127.0.0.1", 52532);
 
         AntennaController controller = new AntennaController(device);
+        controller.log.setOutput(System.out);
 
         BufferedReader in
                 = new BufferedReader(new FileReader("INPUT"));
@@ -138,94 +215,70 @@ public class AntennaController extends EventEmitterImpl<AntennaEvent> {
         controller.runScript(script);
 
         controller.sf.get();
+        controller.close();
+
+        for (AntennaCommand.Type type : AntennaCommand.Type.values()) {
+            System.out.printf("%s ack: %s\n", type, controller.getAckLatency(type));
+            System.out.printf("%s completion: %s\n", type, controller.getCompletionLatency(type));
+        }
 
         System.exit(0);
     }
 
     /**
-     * Properly formats the log output for every event type
-     * Located under AntennaController as it is an logging implementation detail
+     * Updates the controller's view of the device from an event. Runs on the event thread, so it only reads the
+     * fields it needs; text is left to the log.
      *
-     * @param event The event to log
-     * @return Formatted log output
+     * @param event The event
      */
-    private String makeLogString(AntennaEvent event) {
-        ByteBuffer b = ByteBuffer.wrap(event.data);
+    private void updateState(AntennaEvent event) {
+        byte[] data = event.data;
 
         switch (event.type) {
-            // Every case should end in a return; break is unnecessary
             case BASE_TIME:
-                long millis = b.getLong();
-                baseTime = ZonedDateTime.ofInstant(
-                        Instant.ofEpochMilli(millis), ZoneId.systemDefault());
-                return String.format("Set base time to %s", dtf.format(baseTime));
+                baseTimeMillis = ByteBuffer.wrap(data).getLong();
+                baseTime = ZonedDateTime.ofInstant(Instant.ofEpochMilli(baseTimeMillis), ZoneId.systemDefault());
+                break;
             case POSITION_UNIT_SIZE:
                 // TODO: handle different position sizes
-                assert b.get() == (byte) 0x04;
-                return "Confirmed position size = 4";
+                assert data[0] == (byte) 0x04;
+                break;
             case CONTROL_SPEED:
-                speed = b.getInt();
-                return String.format("Set speed to %d u/ms = %.4f d/s", speed, d(speed) * 1000);
+                speed = Bytes.getInt(data, 0);
+                break;
             case CONTROL_POSITION_RANGE:
-                minAz = b.getInt();
-                maxAz = b.getInt();
-                minEl = b.getInt();
-                maxEl = b.getInt();
+                minAz = Bytes.getInt(data, 0);
+                maxAz = Bytes.getInt(data, 4);
+                minEl = Bytes.getInt(data, 8);
+                maxEl = Bytes.getInt(data, 12);
 
                 assert minAz < maxAz;
                 assert minEl < maxEl;
-
-                return String.format("Set minAz, maxAz, minEl, maxEl = %.3f, %.3f, %.3f, %.3f",
-                        d(minAz), d(maxAz), d(minEl), d(maxEl));
+                break;
             case CONTROL_BASE_POSITION:
-                baseAz = b.getInt();
-                baseEl = b.getInt();
+                baseAz = Bytes.getInt(data, 0);
+                baseEl = Bytes.getInt(data, 4);
 
                 assert minAz < baseAz && baseAz < maxAz;
                 assert minEl < baseEl && baseEl < maxEl;
-
-                return String.format("Set base position to (%.3f, %.3f)", d(baseAz), d(baseEl));
-            case COMMAND_ISSUED:
-                return String.format("Issued command %s", AntennaCommand.readFromBuffer(b));
+                break;
             case CURRENT_STATE:
-                az = b.getInt();
-                el = b.getInt();
-                destAz = b.getInt();
-                destEl = b.getInt();
-
-                if (az == destAz && el == destEl) {
-                    return String.format("Current location: (%.3f, %.3f)", d(az), d(el));
-                } else {
-                    return String.format("Current location: (%.3f, %.3f). Moving to (%.3f, %.3f)", d(az), d(el), d(destAz), d(destEl));
-                }
+                az = Bytes.getInt(data, 0);
+                el = Bytes.getInt(data, 4);
+                destAz = Bytes.getInt(data, 8);
+                destEl = Bytes.getInt(data, 12);
+                break;
             case MOVE_FINISHED:
-                az = b.getInt();
-                el = b.getInt();
-
-                return String.format("Move finished. Current location: (%.3f, %.3f)", d(az), d(el));
             case MOVE_CANCELED:
-                az = b.getInt();
-                el = b.getInt();
-
-                return String.format("Move canceled. Current location: (%.3f, %.3f)", d(az), d(el));
-
-            case MEASUREMENT:
+            case WAYPOINT_REACHED:
+                az = Bytes.getInt(data, 0);
+                el = Bytes.getInt(data, 4);
+                break;
             default:
-                // Prepend "Error: " to any errors so we don't need to redefine this every time
-                return (event.isError() ? "Error: " : "") + event;
+                break;
         }
     }
 
-    /**
-     * Formats a given time in milliseconds after baseTime
-     *
-     * @param time Time in milliseconds after the baseTime
-     * @return Formatted time string
-     */
-    private String getFormattedTime(int time) {
-        return dtf.format(baseTime.plus(Duration.ofMillis(time)));
-    }
-
     /**
      * Runs script in thread. Power on the device before the script runs. Script itself doesn't necessarily
      * have to begin from a base state.
@@ -241,6 +294,26 @@ public class AntennaController extends EventEmitterImpl<AntennaEvent> {
         sf = es.submit(activeRunner);
     }
 
+    /**
+     * Runs script on a scheduler without tying up a thread. The script gives its thread back while it waits for
+     * moves and WAITs, so a small shared scheduler can drive scripts on many controllers at once.
+     *
+     * @param script    A script to run.
+     * @param scheduler Scheduler to run script steps and timers on
+     * @return Future completed when the script ends
+     */
+    public CompletableFuture<Void> runScriptAsync(AntennaScript script, ScheduledExecutorService scheduler) {
+        if (activeRunner != null) {
+            stop();
+        }
+
+        activeRunner = script.attach(this);
+        CompletableFuture<Void> future = activeRunner.start(scheduler);
+        sf = future;
+
+        return future;
+    }
+
     /**
      * Stop a currently running script (waiting until next loop)
      */
@@ -257,31 +330,223 @@ public class AntennaController extends EventEmitterImpl<AntennaEvent> {
     }
 
     /**
-     * Power on the device
+     * Registers a listener for measurements tagged with the position they were taken at.
+     * Unlike event listeners it is called on the device's thread even with async dispatch, so the position is
+     * the one the controller knew when the measurement arrived and no measurement is dropped.
+     *
+     * @param listener The listener
      */
-    public void poweron() throws InterruptedException {
-        EventEmitter.Listener<AntennaEvent> notifier = (AntennaEvent event) -> {
-            synchronized (POWERON_MONITOR) {
-                if (event.type == AntennaEvent.Type.BASE_TIME) {
-                    POWERON_MONITOR.notify();
-                }
+    public synchronized void addMeasurementListener(MeasurementListener listener) {
+        MeasurementListener[] updated = Arrays.copyOf(measurementListeners, measurementListeners.length + 1);
+        updated[measurementListeners.length] = listener;
+        measurementListeners = updated;
+    }
+
+    /**
+     * @param listener Listener to remove
+     */
+    public synchronized void removeMeasurementListener(MeasurementListener listener) {
+        MeasurementListener[] current = measurementListeners;
+
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                MeasurementListener[] updated = Arrays.copyOf(current, current.length - 1);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                measurementListeners = updated;
+                return;
             }
-        };
+        }
+    }
+
+    /**
+     * Stops listening to the device, ends the running script and closes the log after echoing what is left.
+     * The device itself is left as it is.
+     */
+    public void close() {
+        device.removeEventListener(deviceListener);
 
-        device.addEventListener(notifier);
-        device.submitCommand(AntennaCommand.Type.POWERON);
+        if (activeRunner != null) {
+            stop();
+        }
+        es.shutdownNow();
+
+        disableAsyncDispatch();
+        log.close();
+    }
+
+    /**
+     * Submits a command to the device without waiting for a response. Only its ack latency is timed; nothing
+     * waits for the event that completes it, so a device that never answers leaves nothing behind.
+     *
+     * @param command Command to submit
+     */
+    @Override
+    public void submitCommand(AntennaCommand command) {
+        command = tag(command);
+        track(new SentCommand(command, false));
+
+        device.submitCommand(command);
+    }
+
+    /**
+     * Submits a command to the device, timing it, and tags it with a correlation id if command tagging is on
+     *
+     * @param command Command to submit
+     * @return Future completed with the response event
+     */
+    @Override
+    public CompletableFuture<AntennaEvent> submitCommandAsync(AntennaCommand command) {
+        command = tag(command);
+
+        SentCommand sent = new SentCommand(command, true);
+        track(sent);
+
+        CompletableFuture<AntennaEvent> future = device.submitCommandAsync(command);
+        future.whenComplete((event, e) -> {
+            inFlight.remove(sent);
+
+            if (e == null) {
+                completionLatency.get(sent.command.type).record(System.nanoTime() - sent.nanoTime);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * @return The command with a fresh correlation id if command tagging is on and it has none yet
+     */
+    private AntennaCommand tag(AntennaCommand command) {
+        if (!commandTagging || command.id != 0) return command;
+
+        int id;
+        do {
+            id = lastCommandId.incrementAndGet();
+        } while (id == 0);
+
+        return command.withId(id);
+    }
+
+    /**
+     * Adds a command to inFlight, first dropping commands that have waited longer than IN_FLIGHT_TIMEOUT (their
+     * response was lost, or the device never answers). A dropped command's future still completes if the response
+     * turns up; only its ack latency is lost.
+     */
+    private void track(SentCommand sent) {
+        SentCommand oldest;
+        while ((oldest = inFlight.peek()) != null && sent.nanoTime - oldest.nanoTime > IN_FLIGHT_TIMEOUT) {
+            inFlight.remove(oldest);
+        }
+
+        inFlight.add(sent);
+    }
+
+    /**
+     * Records the ack latency of the command a COMMAND_ISSUED event echoes
+     */
+    private void acknowledge(AntennaEvent event, long nanoTime) {
+        for (SentCommand sent : inFlight) {
+            if (sent.acknowledged) continue;
+
+            boolean match = event.id != 0
+                    ? sent.command.id == event.id
+                    : sent.command.id == 0 && Arrays.equals(sent.echo, event.data);
+
+            if (match) {
+                sent.acknowledged = true;
+                ackLatency.get(sent.command.type).record(nanoTime - sent.nanoTime);
+                // Nothing more to time for a command submitted without a future
+                if (!sent.awaited) inFlight.remove(sent);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Tags every command submitted from now on with a correlation id. The device must support the extension.
+     *
+     * @param commandTagging true to tag commands
+     */
+    public void setCommandTagging(boolean commandTagging) {
+        this.commandTagging = commandTagging;
+    }
 
-        synchronized (POWERON_MONITOR) {
-            POWERON_MONITOR.wait();
+    /**
+     * @param type Command type
+     * @return Latencies from submitting a command of the type to its COMMAND_ISSUED echo
+     */
+    public LatencyHistogram getAckLatency(AntennaCommand.Type type) {
+        return ackLatency.get(type);
+    }
 
-            device.removeEventListener(notifier);
+    /**
+     * @param type Command type
+     * @return Latencies from submitting a command of the type to the event that completes it
+     */
+    public LatencyHistogram getCompletionLatency(AntennaCommand.Type type) {
+        return completionLatency.get(type);
+    }
+
+    /**
+     * Power on the device and wait for it to report its base time
+     */
+    public void poweron() throws InterruptedException {
+        try {
+            poweronAsync().get();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
         }
     }
 
+    /**
+     * Power on the device
+     *
+     * @return Future completed with the BASE_TIME event
+     */
+    public CompletableFuture<AntennaEvent> poweronAsync() {
+        return submitCommandAsync(AntennaCommand.Type.POWERON);
+    }
+
     /**
      * Power off the device
      */
     public void poweroff() {
-        device.submitCommand(AntennaCommand.Type.POWEROFF);
+        submitCommand(AntennaCommand.Type.POWEROFF);
+    }
+
+    /**
+     * Receives measurements together with the position they were taken at
+     */
+    public interface MeasurementListener {
+        /**
+         * @param event      MEASUREMENT or MEASUREMENT_INT16 event
+         * @param epochMilli Time of the measurement in milliseconds since the epoch
+         * @param az         Azimuth when the measurement arrived
+         * @param el         Elevation when the measurement arrived
+         */
+        void measurementReceived(AntennaEvent event, long epochMilli, int az, int el);
+    }
+
+    /**
+     * A command submitted through the controller, kept until it completes
+     */
+    private static final class SentCommand {
+        private final AntennaCommand command;
+        /**
+         * Bytes the device echoes in COMMAND_ISSUED (always untagged)
+         */
+        private final byte[] echo;
+        private final long nanoTime = System.nanoTime();
+        private volatile boolean acknowledged = false;
+        /**
+         * Whether a future waits for the command's response, which takes it out of inFlight
+         */
+        private final boolean awaited;
+
+        private SentCommand(AntennaCommand command, boolean awaited) {
+            this.command = command;
+            this.echo = command.withId(0).toArray();
+            this.awaited = awaited;
+        }
     }
 }
\ No newline at end of file
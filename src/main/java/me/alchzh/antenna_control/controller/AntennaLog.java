@@ -0,0 +1,322 @@
+package me.alchzh.antenna_control.controller;
+
+import me.alchzh.antenna_control.device.AntennaCommand;
+import me.alchzh.antenna_control.device.AntennaEvent;
+import me.alchzh.antenna_control.util.Bytes;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static me.alchzh.antenna_control.util.Units.d;
+
+/**
+ * The event log of an AntennaController
+ * <p>
+ * Logging an event only stores the (immutable, already binary) event and its wall clock time in a ring of recent
+ * records; nothing is formatted on the thread that dispatches events. Text is rendered when it is read: by a
+ * background thread echoing new records to an output in batches, if one is set, or by export. A record
+ * overwritten before the echo got to it is counted as skipped instead of holding up logging.
+ * <p>
+ * The writer thread runs until close.
+ */
+public class AntennaLog {
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    /**
+     * Most time a record waits to be echoed
+     */
+    private static final long ECHO_INTERVAL = TimeUnit.MILLISECONDS.toNanos(50);
+    /**
+     * Records copied out of the ring per rendering pass
+     */
+    private static final int BATCH = 1024;
+
+    private final int capacity;
+    private final int mask;
+
+    /*
+     * Guarded by this: the ring and the sequence of the next record
+     */
+    private final AntennaEvent[] events;
+    private final long[] times;
+    private long head = 0;
+
+    /*
+     * Guarded by RENDER_MONITOR: the next record to echo and copies of the records being rendered
+     */
+    private long echoed = 0;
+    private final AntennaEvent[] batchEvents = new AntennaEvent[BATCH];
+    private final long[] batchTimes = new long[BATCH];
+    private final StringBuilder text = new StringBuilder();
+
+    private volatile PrintStream output;
+    private volatile boolean closed = false;
+    private final Thread writer;
+
+    private final Object RENDER_MONITOR = new Object();
+
+    /**
+     * @param capacity Number of recent records kept. Rounded up to a power of two.
+     */
+    public AntennaLog(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        this.capacity = size;
+        this.mask = size - 1;
+        this.events = new AntennaEvent[size];
+        this.times = new long[size];
+
+        writer = new Thread(this::runWriter, "antennaLog");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records an event
+     *
+     * @param event      The event
+     * @param epochMilli Wall clock time of the event in milliseconds since the epoch
+     */
+    synchronized void append(AntennaEvent event, long epochMilli) {
+        int index = (int) head & mask;
+        events[index] = event;
+        times[index] = epochMilli;
+        head++;
+    }
+
+    /**
+     * @return Number of records logged so far
+     */
+    public synchronized long getSequence() {
+        return head;
+    }
+
+    /**
+     * Sets where new records are echoed as text. Nothing is echoed until an output is set.
+     *
+     * @param output Stream to echo to, or null to only keep records for export
+     */
+    public void setOutput(PrintStream output) {
+        this.output = output;
+    }
+
+    /**
+     * Echoes every record logged so far now, instead of on the next pass of the background writer
+     */
+    public void flush() {
+        echo();
+    }
+
+    /**
+     * Renders every record still in the ring as text, oldest first
+     *
+     * @param out Destination
+     * @throws IOException If out can't be written
+     */
+    public void export(Appendable out) throws IOException {
+        long from;
+        long to;
+
+        synchronized (this) {
+            to = head;
+            from = Math.max(0, to - capacity);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        AntennaEvent[] chunkEvents = new AntennaEvent[BATCH];
+        long[] chunkTimes = new long[BATCH];
+
+        while (from < to) {
+            int n = copy(from, to, chunkEvents, chunkTimes);
+            if (n < 0) {
+                // Overwritten while exporting, carry on from the oldest record left
+                synchronized (this) {
+                    from = Math.max(from, head - capacity);
+                }
+                continue;
+            }
+
+            for (int i = 0; i < n; i++) {
+                appendLine(sb, chunkEvents[i], chunkTimes[i]);
+            }
+            out.append(sb);
+            sb.setLength(0);
+
+            from += n;
+        }
+    }
+
+    /**
+     * Renders every record still in the ring to a text file
+     *
+     * @param path File to write
+     * @throws IOException If the file can't be written
+     */
+    public void export(Path path) throws IOException {
+        try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            export(out);
+        }
+    }
+
+    /**
+     * Stops the background writer after echoing what is left
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Copies records [from, min(to, from + BATCH)) out of the ring
+     *
+     * @return Number of records copied, or -1 if from was already overwritten
+     */
+    private synchronized int copy(long from, long to, AntennaEvent[] dstEvents, long[] dstTimes) {
+        if (from < head - capacity) return -1;
+
+        int n = (int) Math.min(to - from, dstEvents.length);
+        for (int i = 0; i < n; i++) {
+            int index = (int) (from + i) & mask;
+            dstEvents[i] = events[index];
+            dstTimes[i] = times[index];
+        }
+
+        return n;
+    }
+
+    private void runWriter() {
+        while (!closed) {
+            LockSupport.parkNanos(this, ECHO_INTERVAL);
+            echo();
+        }
+
+        echo();
+    }
+
+    private void echo() {
+        synchronized (RENDER_MONITOR) {
+            long to = getSequence();
+
+            PrintStream out = output;
+            if (out == null) {
+                echoed = to;
+                return;
+            }
+
+            while (echoed < to) {
+                int n = copy(echoed, to, batchEvents, batchTimes);
+
+                if (n < 0) {
+                    long oldest;
+                    synchronized (this) {
+                        oldest = head - capacity;
+                    }
+
+                    text.append(String.format("... %d log records skipped\n", oldest - echoed));
+                    echoed = oldest;
+                    continue;
+                }
+
+                for (int i = 0; i < n; i++) {
+                    appendLine(text, batchEvents[i], batchTimes[i]);
+                    batchEvents[i] = null;
+                }
+                echoed += n;
+
+                out.print(text);
+                text.setLength(0);
+            }
+
+            if (text.length() > 0) {
+                out.print(text);
+                text.setLength(0);
+            }
+        }
+    }
+
+    private static void appendLine(StringBuilder sb, AntennaEvent event, long epochMilli) {
+        sb.append(AntennaController.dtf.format(Instant.ofEpochMilli(epochMilli).atZone(ZoneId.systemDefault())))
+                .append(' ')
+                .append(describe(event))
+                .append('\n');
+    }
+
+    /**
+     * Properly formats the log output for every event type
+     *
+     * @param event The event to describe
+     * @return Formatted log output
+     */
+    static String describe(AntennaEvent event) {
+        byte[] data = event.data;
+
+        switch (event.type) {
+            // Every case should end in a return; break is unnecessary
+            case BASE_TIME:
+                ZonedDateTime baseTime = ZonedDateTime.ofInstant(
+                        Instant.ofEpochMilli(ByteBuffer.wrap(data).getLong()), ZoneId.systemDefault());
+                return String.format("Set base time to %s", AntennaController.dtf.format(baseTime));
+            case POSITION_UNIT_SIZE:
+                return "Confirmed position size = 4";
+            case CONTROL_SPEED:
+                int speed = Bytes.getInt(data, 0);
+                return String.format("Set speed to %d u/ms = %.4f d/s", speed, d(speed) * 1000);
+            case CONTROL_POSITION_RANGE:
+                return String.format("Set minAz, maxAz, minEl, maxEl = %.3f, %.3f, %.3f, %.3f",
+                        d(Bytes.getInt(data, 0)), d(Bytes.getInt(data, 4)),
+                        d(Bytes.getInt(data, 8)), d(Bytes.getInt(data, 12)));
+            case CONTROL_BASE_POSITION:
+                return String.format("Set base position to (%.3f, %.3f)",
+                        d(Bytes.getInt(data, 0)), d(Bytes.getInt(data, 4)));
+            case COMMAND_ISSUED:
+                return String.format("Issued command %s%s", AntennaCommand.readFromBuffer(ByteBuffer.wrap(data)),
+                        event.id != 0 ? " #" + event.id : "");
+            case CURRENT_STATE:
+                int az = Bytes.getInt(data, 0);
+                int el = Bytes.getInt(data, 4);
+                int destAz = Bytes.getInt(data, 8);
+                int destEl = Bytes.getInt(data, 12);
+
+                if (az == destAz && el == destEl) {
+                    return String.format("Current location: (%.3f, %.3f)", d(az), d(el));
+                } else {
+                    return String.format("Current location: (%.3f, %.3f). Moving to (%.3f, %.3f)",
+                            d(az), d(el), d(destAz), d(destEl));
+                }
+            case MOVE_FINISHED:
+                return String.format("Move finished. Current location: (%.3f, %.3f)",
+                        d(Bytes.getInt(data, 0)), d(Bytes.getInt(data, 4)));
+            case MOVE_CANCELED:
+                return String.format("Move canceled. Current location: (%.3f, %.3f)",
+                        d(Bytes.getInt(data, 0)), d(Bytes.getInt(data, 4)));
+            case WAYPOINT_REACHED:
+                return String.format("Waypoint reached (%.3f, %.3f). %d left in queue",
+                        d(Bytes.getInt(data, 0)), d(Bytes.getInt(data, 4)), Bytes.getInt(data, 8));
+            case MEASUREMENT:
+            case MEASUREMENT_INT16:
+                // The values themselves are for the journal or the measurement monitor, not the text log
+                return String.format("Measurement of %d values", event.getMeasurementCount());
+            default:
+                // Prepend "Error: " to any errors so we don't need to redefine this every time
+                return (event.isError() ? "Error: " : "") + event;
+        }
+    }
+}
@@ -3,15 +3,15 @@ package me.alchzh.antenna_control.controller;
 import me.alchzh.antenna_control.device.AntennaCommand;
 import me.alchzh.antenna_control.device.AntennaDevice;
 import me.alchzh.antenna_control.device.AntennaEvent;
-import me.alchzh.antenna_control.device.EventEmitter;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static me.alchzh.antenna_control.util.Units.d;
@@ -26,29 +26,38 @@ import static me.alchzh.antenna_control.util.Units.u;
  *     <li>LABEL [NAME]</li>
  *     <li>GOTO [LABEL]</li>
  *     <li>G0 [AZ] [EL] (blocks until move completed)</li>
+ *     <li>WP [AZ] [EL] [MILLI] (queues a waypoint of a continuous trajectory, reached MILLI after the previous)</li>
+ *     <li>WPEND (sends the remaining waypoints and blocks until the trajectory is finished)</li>
+ *     <li>RASTER [AZ] [EL] [WIDTH] [HEIGHT] [STEP] [MILLI] (grid scan around a center, MILLI per point)</li>
+ *     <li>BOUSTRO [AZ] [EL] [WIDTH] [HEIGHT] [STEP] [MILLI] (grid scan with rows in alternating directions)</li>
+ *     <li>SPIRAL [AZ] [EL] [RADIUS] [STEP] [MILLI] (spiral scan out from a center)</li>
  *     <li>WAIT [MILLI}</li>
  *     <li>EXIT</li>
  * </ul>
  */
 public class AntennaScript {
-    private static final Pattern unitsPattern = Pattern.compile("^(\\d+)u$");
-    private static final Pattern degreesPattern = Pattern.compile("^(\\d+(\\.\\d*)?)d?$");
-
     /**
      * The list of instructions represents the entire script (no code blocks).
      */
     private final List<AntennaScriptInstruction> instructions = new ArrayList<>();
     /**
-     * Label locations for GOTO statement in terms of indices in instructions list.
+     * The instructions compiled to opcodes, with labels and variables resolved.
+     */
+    private final AntennaScriptProgram program;
+    /**
+     * Print every instruction as it runs. Off by default, so a tight loop isn't bound by console output.
      */
-    private final Map<String, Integer> labels = new HashMap<>();
+    private volatile boolean trace = false;
 
     /**
      * Read a script from a BufferedReader, one instruction per line, usually from a file.
      * If from standard input, use ENDSCRIPT to end script
+     * The script is compiled once here, so unknown labels, undefined variables and malformed literals are reported
+     * before anything runs.
      *
      * @param br Buffered reader to read from
-     * @throws IOException On any IOException
+     * @throws IOException              On any IOException
+     * @throws IllegalArgumentException If the script doesn't compile
      */
     public AntennaScript(BufferedReader br) throws IOException {
         String line;
@@ -61,12 +70,21 @@ public class AntennaScript {
 
             if (instruction.command == null) {
                 continue;
-            } else if (instruction.command.equals("LABEL")) {
-                labels.put(instruction.arguments.get(0), instructions.size());
             }
 
             instructions.add(instruction);
         }
+
+        program = AntennaScriptProgram.compile(instructions);
+    }
+
+    /**
+     * Prints every instruction to System.out as runners execute it
+     *
+     * @param trace true to print instructions
+     */
+    public void setTrace(boolean trace) {
+        this.trace = trace;
     }
 
     @Override
@@ -87,18 +105,45 @@ public class AntennaScript {
 
     /**
      * AntennaScriptRunner attaches to a device and is the Callable that the script runs as in a thread
+     * Alternatively, start() runs it on a scheduler without blocking a thread while it waits.
+     * Either way a command that fails (a G0 while powered off, say) is reported and the script carries on.
      */
     public class AntennaScriptRunner implements Callable<Void> {
+        private static final int FINISHED = 0;
+        private static final int SUSPEND_FUTURE = 1;
+        private static final int SUSPEND_WAIT = 2;
+
         /**
          * scCursor represents the current index in the instructions to execute
          */
         private int scCursor = 0;
         private final AntennaController controller;
         private final AntennaDevice device;
-        private final Map<String, Integer> variables = new HashMap<>();
-        private final Map<String, Double> positions = new HashMap<>();
-        private boolean stopped = false;
-        private final Object MOVE_MONITOR = new Object();
+        private final int[] variables = new int[program.intVarCount];
+        private final double[] positions = new double[program.positionVarCount];
+        private volatile boolean stopped = false;
+
+        /*
+         * What the script is suspended on, set by runUntilSuspended
+         */
+        private CompletableFuture<?> pendingFuture;
+        private int pendingWait;
+        /**
+         * Created by the first WP or scan
+         */
+        private WaypointStream waypoints;
+        /**
+         * Scan in progress, its dwell and whether its current point still has to be sent
+         */
+        private ScanPattern scan;
+        private int scanDwell;
+        private boolean scanPointPending = false;
+
+        /**
+         * Set when running asynchronously with start()
+         */
+        private ScheduledExecutorService scheduler;
+        private final CompletableFuture<Void> completion = new CompletableFuture<>();
 
 
         /**
@@ -108,307 +153,339 @@ public class AntennaScript {
          */
         private AntennaScriptRunner(AntennaController controller) {
             this.controller = controller;
-            this.device = controller.getDevice();
+            // Commands go through the controller so it can tag them and track their latency
+            this.device = controller;
         }
 
-
         /**
-         * Get the position degrees presented by a specific argument
-         * TODO: move this to the parser somehow
+         * Get the position degrees presented by a compiled operand
          *
-         * @param argument The argument
+         * @param operand The operand
          * @return Position (degrees) it represents
          */
-        private double getPosition(String argument) {
-            if (argument == null) {
-                throw new IllegalArgumentException("Something went very, very wrong");
-            }
-
-            argument = argument.toUpperCase();
-
-            switch (argument) {
-                case "AZ":
+        private double getPosition(int operand) {
+            int index = AntennaScriptProgram.index(operand);
+
+            switch (AntennaScriptProgram.kind(operand)) {
+                case AntennaScriptProgram.CONST:
+                    return program.positionConstants[index];
+                case AntennaScriptProgram.POS_VAR:
+                    return positions[index];
+                case AntennaScriptProgram.AZ:
                     return d(controller.getAz());
-                case "El":
+                case AntennaScriptProgram.EL:
                     return d(controller.getEl());
-                case "BASE_AZ":
+                case AntennaScriptProgram.BASE_AZ:
                     return d(controller.getBaseAz());
-                case "BASE_EL":
+                case AntennaScriptProgram.BASE_EL:
                     return d(controller.getBaseEl());
+                default:
+                    throw new IllegalArgumentException("Not a position operand " + operand);
             }
+        }
 
-            Matcher unitMatcher;
-            if ((unitMatcher = unitsPattern.matcher(argument)).matches()) {
-                return d(Integer.parseInt(unitMatcher.group(1)));
+        /**
+         * Get the integer presented by a compiled operand
+         *
+         * @param operand The operand
+         * @return Integer it represents
+         */
+        private int getInteger(int operand) {
+            int index = AntennaScriptProgram.index(operand);
+
+            switch (AntennaScriptProgram.kind(operand)) {
+                case AntennaScriptProgram.CONST:
+                    return program.intConstants[index];
+                case AntennaScriptProgram.INT_VAR:
+                    return variables[index];
+                case AntennaScriptProgram.TIME:
+                    return controller.getTime();
+                case AntennaScriptProgram.LAST_TIME:
+                    return controller.getLastEventTime();
+                default:
+                    throw new IllegalArgumentException("Not an integer operand " + operand);
             }
+        }
 
-            Matcher degreesMatcher;
-            if ((degreesMatcher = degreesPattern.matcher(argument)).matches()) {
-                return Double.parseDouble(degreesMatcher.group(1));
-            }
+        public void stop() {
+            stopped = true;
+        }
 
-            Double fromVar;
-            if ((fromVar = positions.get(argument)) != null) {
-                return fromVar;
+        @Override
+        public Void call() throws InterruptedException {
+            try {
+                while (true) {
+                    switch (runUntilSuspended()) {
+                        case FINISHED:
+                            return null;
+                        case SUSPEND_FUTURE:
+                            // Freezes the script runner until the move (or trajectory) finishes or is canceled
+                            try {
+                                pendingFuture.get();
+                            } catch (ExecutionException e) {
+                                e.printStackTrace();
+                            }
+                            break;
+                        case SUSPEND_WAIT:
+                            TimeUnit.MILLISECONDS.sleep(pendingWait);
+                            break;
+                    }
+                }
+            } finally {
+                finish();
             }
-
-            throw new IllegalArgumentException("Not a position " + argument);
         }
 
         /**
-         * Get the integer presented by a specific argument
-         * TODO: move this to the parser somehow
+         * Runs the script without holding a thread while it waits. Moves and WAITs register a continuation (on the
+         * command's future or a scheduled task) and give the thread back, so one small scheduler can drive many scripts.
          *
-         * @param argument The argument
-         * @return Integer it represents
+         * @param scheduler Runs the script steps and WAIT timers
+         * @return Future completed when the script ends. Cancelling it stops the script at its next step.
          */
-        public int getInteger(String argument) {
-            if (argument == null) {
-                throw new IllegalArgumentException("Something went very, very wrong");
-            }
+        public CompletableFuture<Void> start(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            // However the script ends, cancelled included, its waypoint listener is removed
+            completion.whenComplete((result, e) -> finish());
+            scheduler.execute(this::resume);
 
-            argument = argument.toUpperCase();
+            return completion;
+        }
 
-            switch (argument) {
-                case "TIME":
-                    return controller.getTime();
-                case "LAST_TIME":
-                    return controller.getLastEventTime();
-                case "ON":
-                    return 1;
-                case "OFF":
-                    return 0;
-            }
+        /**
+         * Runs the script up to its next suspension on the scheduler and registers the continuation.
+         * Synchronized with finish, so a cancel can't close the waypoint stream while a step is using it.
+         */
+        private synchronized void resume() {
+            if (completion.isDone()) return;
 
             try {
-                return Integer.parseInt(argument);
-            } catch (NumberFormatException e) {
-                Integer fromVar;
-                if ((fromVar = variables.get(argument)) != null) {
-                    return fromVar;
+                switch (runUntilSuspended()) {
+                    case FINISHED:
+                        completion.complete(null);
+                        break;
+                    case SUSPEND_FUTURE:
+                        pendingFuture.whenComplete((event, e) -> {
+                            if (e != null) {
+                                e.printStackTrace();
+                            }
+                            scheduler.execute(this::resume);
+                        });
+                        break;
+                    case SUSPEND_WAIT:
+                        scheduler.schedule(this::resume, pendingWait, TimeUnit.MILLISECONDS);
+                        break;
                 }
+            } catch (Exception e) {
+                completion.completeExceptionally(e);
             }
-
-            throw new IllegalArgumentException("Not an integer " + argument);
         }
 
-        public void stop() {
-            stopped = true;
-        }
+        private WaypointStream waypoints() {
+            if (waypoints == null) {
+                waypoints = new WaypointStream(device, controller.getDevice());
+            }
 
-        private void g0block(int AZ, int EL) throws InterruptedException {
-            // Unfreezes the script when a MOVE_FINISHED event is received
-            EventEmitter.Listener<AntennaEvent> notifier = (AntennaEvent event) -> {
-                synchronized (MOVE_MONITOR) {
-                    if (event.type == AntennaEvent.Type.MOVE_FINISHED
-                            || event.type == AntennaEvent.Type.MOVE_CANCELED) {
-                        MOVE_MONITOR.notify();
-                    }
-                }
-            };
+            return waypoints;
+        }
 
-            device.addEventListener(notifier);
-            device.submitCommand(AntennaCommand.Type.G0, AZ, EL);
+        /**
+         * Creates the pattern of a SCAN instruction from the current values of its operands
+         */
+        private void startScan(int pattern, int[] operands) {
+            switch (pattern) {
+                case AntennaScriptProgram.RASTER:
+                    scan = ScanPattern.raster(getPosition(operands[0]), getPosition(operands[1]),
+                            getPosition(operands[2]), getPosition(operands[3]), getPosition(operands[4]));
+                    break;
+                case AntennaScriptProgram.BOUSTROPHEDON:
+                    scan = ScanPattern.boustrophedon(getPosition(operands[0]), getPosition(operands[1]),
+                            getPosition(operands[2]), getPosition(operands[3]), getPosition(operands[4]));
+                    break;
+                case AntennaScriptProgram.SPIRAL:
+                    scan = ScanPattern.spiral(getPosition(operands[0]), getPosition(operands[1]),
+                            getPosition(operands[2]), getPosition(operands[3]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown scan pattern " + pattern);
+            }
 
-            // Freezes the script runner until a MOVE_FINISHED event is received.
-            synchronized (MOVE_MONITOR) {
-                MOVE_MONITOR.wait();
+            scanDwell = getInteger(operands[operands.length - 1]);
+            scanPointPending = false;
+        }
 
-                device.removeEventListener(notifier);
+        private synchronized void finish() {
+            if (waypoints != null) {
+                waypoints.close();
+                waypoints = null;
             }
         }
 
-        @Override
-        public Void call() throws InterruptedException {
+        /**
+         * Executes instructions until the script ends or reaches one that has to wait (G0, STOW, WAIT, WPEND, a scan,
+         * or WP with the device's queue full). The cursor is left after the suspending instruction, or on a WP or
+         * scan that has to run again, and what to wait for is left in the pending fields.
+         *
+         * @return FINISHED, SUSPEND_FUTURE or SUSPEND_WAIT
+         */
+        private int runUntilSuspended() {
+            final int[] opcodes = program.opcodes;
+
             // while we haven't reached the end of the script
-            while (scCursor < instructions.size() && !stopped) {
-                AntennaScriptInstruction instr = instructions.get(scCursor);
+            while (scCursor < opcodes.length && !stopped) {
+                if (trace) System.out.println(program.source[scCursor]);
 
-                System.out.println(instr);
+                int a = program.a[scCursor];
+                int b = program.b[scCursor];
+                int c = program.c[scCursor];
 
-                List<String> args = instr.arguments;
-                switch (instr.command) {
+                switch (opcodes[scCursor]) {
                     // DEVICE COMMANDS
-                    case "G0": {
-                        double AZ = getPosition(args.get(0));
-                        double EL = getPosition(args.get(1));
-
-                        g0block(u(AZ), u(EL));
+                    case AntennaScriptProgram.G0:
+                        pendingFuture = device.submitCommandAsync(AntennaCommand.Type.G0,
+                                u(getPosition(a)), u(getPosition(b)));
+                        scCursor++;
+                        return SUSPEND_FUTURE;
+                    case AntennaScriptProgram.G1:
+                        device.submitCommand(AntennaCommand.Type.G0, u(getPosition(a)), u(getPosition(b)));
                         break;
-                    }
-                    case "G1": {
-                        double AZ = getPosition(args.get(0));
-                        double EL = getPosition(args.get(1));
-
-                        device.submitCommand(AntennaCommand.Type.G0, u(AZ), u(EL));
+                    case AntennaScriptProgram.T0:
+                        device.submitCommand(AntennaCommand.Type.T0, (byte) getInteger(a));
                         break;
-                    }
-                    case "T0":
-                        device.submitCommand(AntennaCommand.Type.T0, (byte) getInteger(args.get(0)));
-                        break;
-                    case "A0":
-                        device.submitCommand(AntennaCommand.Type.A0, (byte) getInteger(args.get(0)));
+                    case AntennaScriptProgram.A0:
+                        device.submitCommand(AntennaCommand.Type.A0, (byte) getInteger(a));
                         break;
-                    case "STOW":
+                    case AntennaScriptProgram.STOW:
                         device.submitCommand(AntennaCommand.Type.T0, (byte) 0x00);
-                        g0block(controller.getBaseAz(), controller.getBaseEl());
+                        pendingFuture = device.submitCommandAsync(AntennaCommand.Type.G0,
+                                controller.getBaseAz(), controller.getBaseEl());
+                        scCursor++;
+                        return SUSPEND_FUTURE;
+                    case AntennaScriptProgram.WP:
+                        pendingFuture = waypoints().add(u(getPosition(a)), u(getPosition(b)), getInteger(c));
+                        // Queue full: wait for room, then run this WP again
+                        if (pendingFuture != null) return SUSPEND_FUTURE;
                         break;
-                    case "POWERON":
+                    case AntennaScriptProgram.WPEND:
+                        if (waypoints == null) break;
+
+                        pendingFuture = waypoints.flush();
+                        if (pendingFuture != null) return SUSPEND_FUTURE;
+
+                        pendingFuture = waypoints.drained();
+                        scCursor++;
+                        return SUSPEND_FUTURE;
+                    case AntennaScriptProgram.SCAN:
+                        if (scan == null) {
+                            startScan(a, program.scanOperands[b]);
+                        }
+
+                        // Feed points until the device's queue is full (run this SCAN again later) or the scan ends
+                        while (scanPointPending || scan.hasNext()) {
+                            if (!scanPointPending) {
+                                scan.next();
+                                scanPointPending = true;
+                            }
+
+                            pendingFuture = waypoints().add(u(scan.getAz()), u(scan.getEl()), scanDwell);
+                            if (pendingFuture != null) return SUSPEND_FUTURE;
+
+                            scanPointPending = false;
+                        }
+
+                        pendingFuture = waypoints.flush();
+                        if (pendingFuture != null) return SUSPEND_FUTURE;
+
+                        scan = null;
+                        pendingFuture = waypoints.drained();
+                        scCursor++;
+                        return SUSPEND_FUTURE;
+                    case AntennaScriptProgram.POWERON:
                         device.submitCommand(AntennaCommand.Type.POWERON);
                         break;
-                    case "POWEROFF":
+                    case AntennaScriptProgram.POWEROFF:
                         device.submitCommand(AntennaCommand.Type.POWEROFF);
                         break;
-                        // SCRIPTING LANGUAGE FEATURES
-                    case "LABEL":
-                    case "":
-                    case "#":
+                    // SCRIPTING LANGUAGE FEATURES
+                    case AntennaScriptProgram.NOP:
                         break;
-                    case "GOTO": {
-                        String LABEL = args.get(0);
-                        scCursor = labels.get(LABEL);
+                    case AntennaScriptProgram.GOTO:
+                        scCursor = a;
                         continue;
-                    }
-                    case "GOTOIF": {
-                        if (getInteger(args.get(0)) > 0) {
-                            String LABEL = args.get(1);
-                            scCursor = labels.get(LABEL);
+                    case AntennaScriptProgram.GOTOIF:
+                        if (getInteger(a) > 0) {
+                            scCursor = b;
                             continue;
                         }
                         break;
-                    }
-                    case "EXIT":
-                        return null;
-                    case "VAR":
-                    case "INT":
-                    case "SETVAR":
-                    case "SETINT":
-                    case "DEFVAR":
-                    case "DEFINT": {
-                        String varName = args.get(0);
-                        if (positions.containsKey(varName)) {
-                            throw new IllegalArgumentException(varName + " is already defined as a position.");
-                        }
-
-                        int varValue = args.size() > 1 ? getInteger(args.get(1)) : 0;
-
-                        variables.put(varName, varValue);
+                    case AntennaScriptProgram.EXIT:
+                        return FINISHED;
+                    case AntennaScriptProgram.SET:
+                        variables[a] = getInteger(b);
                         break;
-                    }
-                    case "POS":
-                    case "SETP":
-                    case "DEFP": {
-                        String posName = args.get(0);
-                        if (variables.containsKey(posName)) {
-                            throw new IllegalArgumentException(posName + " is already defined as an integer var.");
-                        }
-
-                        double posValue = args.size() > 1 ? getPosition(args.get(1)) : 0;
-
-                        positions.put(posName, posValue);
+                    case AntennaScriptProgram.SETP:
+                        positions[a] = getPosition(b);
                         break;
-                    }
-                    case "INC":
-                    case "ADD": {
-                        String varName = args.get(0);
-                        variables.put(varName, variables.get(varName) +
-                                (args.size() > 1 ? getInteger(args.get(1)) : 1));
+                    case AntennaScriptProgram.ADD:
+                        variables[a] += getInteger(b);
                         break;
-                    }
-                    case "INCP":
-                    case "ADDP": {
-                        String posName = args.get(0);
-                        positions.put(posName, positions.get(posName) +
-                                (args.size() > 1 ? getInteger(args.get(1)) : 1));
+                    case AntennaScriptProgram.ADDP:
+                        positions[a] += getInteger(b);
                         break;
-                    }
-                    case "DEC":
-                    case "SUB": {
-                        String varName = args.get(0);
-                        variables.put(varName, variables.get(varName) -
-                                (args.size() > 1 ? getInteger(args.get(1)) : 1));
+                    case AntennaScriptProgram.SUB:
+                        variables[a] -= getInteger(b);
                         break;
-                    }
-                    case "DECP":
-                    case "SUBP": {
-                        String posName = args.get(0);
-                        positions.put(posName, positions.get(posName) -
-                                (args.size() > 1 ? getInteger(args.get(1)) : 1));
+                    case AntennaScriptProgram.SUBP:
+                        positions[a] -= getInteger(b);
                         break;
-                    }
-                    case "MUL": {
-                        String varName = args.get(0);
-                        variables.put(varName, variables.get(varName) * getInteger(args.get(1)));
+                    case AntennaScriptProgram.MUL:
+                        variables[a] *= getInteger(b);
                         break;
-                    }
-                    case "MULP": {
-                        String posName = args.get(0);
-                        positions.put(posName, positions.get(posName) * getPosition(args.get(1)));
+                    case AntennaScriptProgram.MULP:
+                        positions[a] *= getPosition(b);
                         break;
-                    }
-                    case "MULPI": {
-                        String posName = args.get(0);
-                        positions.put(posName, positions.get(posName) * getInteger(args.get(1)));
+                    case AntennaScriptProgram.MULPI:
+                        positions[a] *= getInteger(b);
                         break;
-                    }
-                    case "DIV": {
-                        String varName = args.get(0);
-                        variables.put(varName, variables.get(varName) / getInteger(args.get(1)));
+                    case AntennaScriptProgram.DIV:
+                        variables[a] /= getInteger(b);
                         break;
-                    }
-                    case "DIVP": {
-                        String posName = args.get(0);
-                        positions.put(posName, positions.get(posName) / getPosition(args.get(1)));
+                    case AntennaScriptProgram.DIVP:
+                        positions[a] /= getPosition(b);
                         break;
-                    }
-                    case "DIVPI": {
-                        String posName = args.get(0);
-                        positions.put(posName, positions.get(posName) / getInteger(args.get(1)));
+                    case AntennaScriptProgram.DIVPI:
+                        positions[a] /= getInteger(b);
                         break;
-                    }
-                    case "LESS": {
-                        String output = args.size() > 2 ? args.get(2) : "_";
-                        variables.put(output, getInteger(args.get(0)) < getInteger(args.get(1)) ? 1 : 0);
+                    case AntennaScriptProgram.LESS:
+                        variables[c] = getInteger(a) < getInteger(b) ? 1 : 0;
                         break;
-                    }
-                    case "LESSP": {
-                        String output = args.size() > 2 ? args.get(2) : "_";
-                        variables.put(output, u(getPosition(args.get(0))) < u(getPosition(args.get(1))) ? 1 : 0);
+                    case AntennaScriptProgram.LESSP:
+                        variables[c] = u(getPosition(a)) < u(getPosition(b)) ? 1 : 0;
                         break;
-                    }
-                    case "GREATER": {
-                        String output = args.size() > 2 ? args.get(2) : "_";
-                        variables.put(output, getInteger(args.get(0)) > getInteger(args.get(1)) ? 1 : 0);
+                    case AntennaScriptProgram.GREATER:
+                        variables[c] = getInteger(a) > getInteger(b) ? 1 : 0;
                         break;
-                    }
-                    case "GREATERP": {
-                        String output = args.size() > 2 ? args.get(2) : "_";
-                        variables.put(output, u(getPosition(args.get(0))) > u(getPosition(args.get(1))) ? 1 : 0);
-                        break;
-                    }
-                    case "EQUAL": {
-                        String output = args.size() > 2 ? args.get(2) : "_";
-                        variables.put(output, getInteger(args.get(0)) == getInteger(args.get(1)) ? 1 : 0);
+                    case AntennaScriptProgram.GREATERP:
+                        variables[c] = u(getPosition(a)) > u(getPosition(b)) ? 1 : 0;
                         break;
-                    }
-                    case "EQUALP": {
-                        String output = args.size() > 2 ? args.get(2) : "_";
-                        variables.put(output, u(getInteger(args.get(0))) == u(getInteger(args.get(1))) ? 1 : 0);
+                    case AntennaScriptProgram.EQUAL:
+                        variables[c] = getInteger(a) == getInteger(b) ? 1 : 0;
                         break;
-                    }
-                    case "WAIT": {
-                        TimeUnit.MILLISECONDS.sleep(getInteger(args.get(0)));
+                    case AntennaScriptProgram.EQUALP:
+                        variables[c] = u(getInteger(a)) == u(getInteger(b)) ? 1 : 0;
                         break;
-                    }
+                    case AntennaScriptProgram.WAIT:
+                        pendingWait = getInteger(a);
+                        scCursor++;
+                        return SUSPEND_WAIT;
                     default:
-                        throw new UnsupportedOperationException(instr.command);
+                        throw new UnsupportedOperationException(program.source[scCursor]);
                 }
 
                 scCursor++;
             }
 
-            // Make sure we return something for the Callable
-            return null;
+            return FINISHED;
         }
     }
 }
\ No newline at end of file
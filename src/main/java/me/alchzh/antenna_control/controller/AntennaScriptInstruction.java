@@ -11,9 +11,10 @@ import java.util.regex.Pattern;
  */
 public class AntennaScriptInstruction {
     /**
-     * Pattern that recognizes every valid token in a line
+     * Pattern that recognizes every valid token in a line. Tokens are case insensitive, so a lowercase unit suffix
+     * (10u, 1.5d) stays part of its number.
      */
-    public static final Pattern pattern = Pattern.compile("([#A-Z_0-9.]+)");
+    public static final Pattern pattern = Pattern.compile("([#A-Za-z_0-9.]+)");
 
     /**
      * Specifies the action of the instruction.
@@ -0,0 +1,496 @@
+package me.alchzh.antenna_control.controller;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static me.alchzh.antenna_control.util.Units.d;
+
+/**
+ * A script compiled once into an opcode based form that runners can execute without touching strings
+ * <p>
+ * Each instruction is an opcode and up to three int arguments, stored in parallel arrays. Labels are resolved to
+ * instruction indices, variables to slots in primitive int[] (integer vars) and double[] (positions) arrays, and
+ * literals are parsed up front. Arguments that read a value are encoded operands (see intOperand/positionOperand)
+ * combining a kind and an index.
+ */
+final class AntennaScriptProgram {
+    /*
+     * Arguments are upper case by the time they are compiled
+     */
+    private static final Pattern unitsPattern = Pattern.compile("^(\\d+)U$");
+    private static final Pattern degreesPattern = Pattern.compile("^(\\d+(\\.\\d*)?)D?$");
+
+    /* OPCODES */
+    static final int NOP = 0;
+    static final int G0 = 1;
+    static final int G1 = 2;
+    static final int T0 = 3;
+    static final int A0 = 4;
+    static final int STOW = 5;
+    static final int POWERON = 6;
+    static final int POWEROFF = 7;
+    static final int GOTO = 8;
+    static final int GOTOIF = 9;
+    static final int EXIT = 10;
+    static final int WAIT = 11;
+    static final int SET = 12;
+    static final int SETP = 13;
+    static final int ADD = 14;
+    static final int ADDP = 15;
+    static final int SUB = 16;
+    static final int SUBP = 17;
+    static final int MUL = 18;
+    static final int MULP = 19;
+    static final int MULPI = 20;
+    static final int DIV = 21;
+    static final int DIVP = 22;
+    static final int DIVPI = 23;
+    static final int LESS = 24;
+    static final int LESSP = 25;
+    static final int GREATER = 26;
+    static final int GREATERP = 27;
+    static final int EQUAL = 28;
+    static final int EQUALP = 29;
+    static final int WP = 30;
+    static final int WPEND = 31;
+    static final int SCAN = 32;
+
+    /* SCAN PATTERNS */
+    static final int RASTER = 0;
+    static final int BOUSTROPHEDON = 1;
+    static final int SPIRAL = 2;
+
+    /* OPERAND KINDS */
+    static final int KIND_SHIFT = 24;
+    static final int INDEX_MASK = (1 << KIND_SHIFT) - 1;
+    static final int CONST = 0;
+    static final int INT_VAR = 1;
+    static final int POS_VAR = 2;
+    static final int TIME = 3;
+    static final int LAST_TIME = 4;
+    static final int AZ = 5;
+    static final int EL = 6;
+    static final int BASE_AZ = 7;
+    static final int BASE_EL = 8;
+
+    final int[] opcodes;
+    final int[] a;
+    final int[] b;
+    final int[] c;
+    /**
+     * Source of each instruction, for tracing
+     */
+    final String[] source;
+
+    final int[] intConstants;
+    final double[] positionConstants;
+    final int intVarCount;
+    final int positionVarCount;
+    /**
+     * Operands of each SCAN instruction, which has more than fit in a, b and c
+     */
+    final int[][] scanOperands;
+
+    private AntennaScriptProgram(Compiler compiler) {
+        int length = compiler.instructions.size();
+
+        opcodes = compiler.opcodes;
+        a = compiler.a;
+        b = compiler.b;
+        c = compiler.c;
+        source = new String[length];
+        for (int i = 0; i < length; i++) {
+            source[i] = compiler.instructions.get(i).toString();
+        }
+
+        intConstants = compiler.intConstants.stream().mapToInt(Integer::intValue).toArray();
+        positionConstants = compiler.positionConstants.stream().mapToDouble(Double::doubleValue).toArray();
+        intVarCount = compiler.intVars.size();
+        positionVarCount = compiler.positionVars.size();
+        scanOperands = compiler.scanOperands.toArray(new int[0][]);
+    }
+
+    /**
+     * Compiles a parsed script
+     *
+     * @param instructions Instructions in order
+     * @return The compiled program
+     * @throws IllegalArgumentException      On an unknown label, undefined variable or malformed literal
+     * @throws UnsupportedOperationException On an unknown command
+     */
+    static AntennaScriptProgram compile(List<AntennaScriptInstruction> instructions) {
+        return new AntennaScriptProgram(new Compiler(instructions));
+    }
+
+    int length() {
+        return opcodes.length;
+    }
+
+    static int kind(int operand) {
+        return operand >>> KIND_SHIFT;
+    }
+
+    static int index(int operand) {
+        return operand & INDEX_MASK;
+    }
+
+    private static class Compiler {
+        private final List<AntennaScriptInstruction> instructions;
+        private final int[] opcodes;
+        private final int[] a;
+        private final int[] b;
+        private final int[] c;
+
+        private final Map<String, Integer> labels = new HashMap<>();
+        private final Map<String, Integer> intVars = new HashMap<>();
+        private final Map<String, Integer> positionVars = new HashMap<>();
+        private final List<Integer> intConstants = new ArrayList<>();
+        private final List<Double> positionConstants = new ArrayList<>();
+        private final List<int[]> scanOperands = new ArrayList<>();
+
+        private Compiler(List<AntennaScriptInstruction> instructions) {
+            this.instructions = instructions;
+
+            int length = instructions.size();
+            opcodes = new int[length];
+            a = new int[length];
+            b = new int[length];
+            c = new int[length];
+
+            // First pass: labels and variable declarations, so they can be referenced before they appear
+            for (int i = 0; i < length; i++) {
+                declare(i, instructions.get(i));
+            }
+
+            for (int i = 0; i < length; i++) {
+                emit(i, instructions.get(i));
+            }
+        }
+
+        private void declare(int index, AntennaScriptInstruction instr) {
+            List<String> args = instr.arguments;
+
+            switch (instr.command) {
+                case "LABEL":
+                    labels.put(args.get(0), index);
+                    break;
+                case "VAR":
+                case "INT":
+                case "SETVAR":
+                case "SETINT":
+                case "DEFVAR":
+                case "DEFINT":
+                    declareInt(args.get(0));
+                    break;
+                case "POS":
+                case "SETP":
+                case "DEFP": {
+                    String posName = args.get(0);
+                    if (intVars.containsKey(posName)) {
+                        throw new IllegalArgumentException(posName + " is already defined as an integer var.");
+                    }
+
+                    positionVars.putIfAbsent(posName, positionVars.size());
+                    break;
+                }
+                case "LESS":
+                case "LESSP":
+                case "GREATER":
+                case "GREATERP":
+                case "EQUAL":
+                case "EQUALP":
+                    declareInt(args.size() > 2 ? args.get(2) : "_");
+                    break;
+            }
+        }
+
+        private void declareInt(String varName) {
+            if (positionVars.containsKey(varName)) {
+                throw new IllegalArgumentException(varName + " is already defined as a position.");
+            }
+
+            intVars.putIfAbsent(varName, intVars.size());
+        }
+
+        private void emit(int i, AntennaScriptInstruction instr) {
+            List<String> args = instr.arguments;
+
+            switch (instr.command) {
+                // DEVICE COMMANDS
+                case "G0":
+                    set(i, G0, positionOperand(args.get(0)), positionOperand(args.get(1)), 0);
+                    break;
+                case "G1":
+                    set(i, G1, positionOperand(args.get(0)), positionOperand(args.get(1)), 0);
+                    break;
+                case "T0":
+                    set(i, T0, intOperand(args.get(0)), 0, 0);
+                    break;
+                case "A0":
+                    set(i, A0, intOperand(args.get(0)), 0, 0);
+                    break;
+                case "WP":
+                    set(i, WP, positionOperand(args.get(0)), positionOperand(args.get(1)), intOperand(args.get(2)));
+                    break;
+                case "WPEND":
+                    set(i, WPEND, 0, 0, 0);
+                    break;
+                case "RASTER":
+                    scan(i, RASTER, args, true);
+                    break;
+                case "BOUSTRO":
+                    scan(i, BOUSTROPHEDON, args, true);
+                    break;
+                case "SPIRAL":
+                    scan(i, SPIRAL, args, false);
+                    break;
+                case "STOW":
+                    set(i, STOW, 0, 0, 0);
+                    break;
+                case "POWERON":
+                    set(i, POWERON, 0, 0, 0);
+                    break;
+                case "POWEROFF":
+                    set(i, POWEROFF, 0, 0, 0);
+                    break;
+                // SCRIPTING LANGUAGE FEATURES
+                case "LABEL":
+                case "":
+                case "#":
+                    set(i, NOP, 0, 0, 0);
+                    break;
+                case "GOTO":
+                    set(i, GOTO, label(args.get(0)), 0, 0);
+                    break;
+                case "GOTOIF":
+                    set(i, GOTOIF, intOperand(args.get(0)), label(args.get(1)), 0);
+                    break;
+                case "EXIT":
+                    set(i, EXIT, 0, 0, 0);
+                    break;
+                case "VAR":
+                case "INT":
+                case "SETVAR":
+                case "SETINT":
+                case "DEFVAR":
+                case "DEFINT":
+                    set(i, SET, intVar(args.get(0)), args.size() > 1 ? intOperand(args.get(1)) : intConstant(0), 0);
+                    break;
+                case "POS":
+                case "SETP":
+                case "DEFP":
+                    set(i, SETP, positionVar(args.get(0)),
+                            args.size() > 1 ? positionOperand(args.get(1)) : positionConstant(0), 0);
+                    break;
+                case "INC":
+                case "ADD":
+                    set(i, ADD, intVar(args.get(0)), args.size() > 1 ? intOperand(args.get(1)) : intConstant(1), 0);
+                    break;
+                case "INCP":
+                case "ADDP":
+                    set(i, ADDP, positionVar(args.get(0)),
+                            args.size() > 1 ? intOperand(args.get(1)) : intConstant(1), 0);
+                    break;
+                case "DEC":
+                case "SUB":
+                    set(i, SUB, intVar(args.get(0)), args.size() > 1 ? intOperand(args.get(1)) : intConstant(1), 0);
+                    break;
+                case "DECP":
+                case "SUBP":
+                    set(i, SUBP, positionVar(args.get(0)),
+                            args.size() > 1 ? intOperand(args.get(1)) : intConstant(1), 0);
+                    break;
+                case "MUL":
+                    set(i, MUL, intVar(args.get(0)), intOperand(args.get(1)), 0);
+                    break;
+                case "MULP":
+                    set(i, MULP, positionVar(args.get(0)), positionOperand(args.get(1)), 0);
+                    break;
+                case "MULPI":
+                    set(i, MULPI, positionVar(args.get(0)), intOperand(args.get(1)), 0);
+                    break;
+                case "DIV":
+                    set(i, DIV, intVar(args.get(0)), intOperand(args.get(1)), 0);
+                    break;
+                case "DIVP":
+                    set(i, DIVP, positionVar(args.get(0)), positionOperand(args.get(1)), 0);
+                    break;
+                case "DIVPI":
+                    set(i, DIVPI, positionVar(args.get(0)), intOperand(args.get(1)), 0);
+                    break;
+                case "LESS":
+                    comparison(i, LESS, args, false);
+                    break;
+                case "LESSP":
+                    comparison(i, LESSP, args, true);
+                    break;
+                case "GREATER":
+                    comparison(i, GREATER, args, false);
+                    break;
+                case "GREATERP":
+                    comparison(i, GREATERP, args, true);
+                    break;
+                case "EQUAL":
+                    comparison(i, EQUAL, args, false);
+                    break;
+                case "EQUALP":
+                    // Compares integers (converted to units) like the original interpreter did
+                    comparison(i, EQUALP, args, false);
+                    break;
+                case "WAIT":
+                    set(i, WAIT, intOperand(args.get(0)), 0, 0);
+                    break;
+                default:
+                    throw new UnsupportedOperationException(instr.command);
+            }
+        }
+
+        private void comparison(int i, int opcode, List<String> args, boolean positions) {
+            int left = positions ? positionOperand(args.get(0)) : intOperand(args.get(0));
+            int right = positions ? positionOperand(args.get(1)) : intOperand(args.get(1));
+
+            set(i, opcode, left, right, intVar(args.size() > 2 ? args.get(2) : "_"));
+        }
+
+        /**
+         * SCAN: a is the pattern, b indexes scanOperands, which holds center az, center el, then width and height
+         * (grids) or radius (spirals), then step as positions and last the dwell as an integer
+         */
+        private void scan(int i, int pattern, List<String> args, boolean grid) {
+            int positionCount = grid ? 5 : 4;
+            int[] operands = new int[positionCount + 1];
+
+            for (int n = 0; n < positionCount; n++) {
+                operands[n] = positionOperand(args.get(n));
+            }
+            operands[positionCount] = intOperand(args.get(positionCount));
+
+            scanOperands.add(operands);
+            set(i, SCAN, pattern, scanOperands.size() - 1, 0);
+        }
+
+        private void set(int i, int opcode, int argA, int argB, int argC) {
+            opcodes[i] = opcode;
+            a[i] = argA;
+            b[i] = argB;
+            c[i] = argC;
+        }
+
+        private int label(String name) {
+            Integer index = labels.get(name);
+            if (index == null) {
+                throw new IllegalArgumentException("Unknown label " + name);
+            }
+
+            return index;
+        }
+
+        private int intVar(String name) {
+            Integer slot = intVars.get(name);
+            if (slot == null) {
+                throw new IllegalArgumentException("Not an integer var " + name);
+            }
+
+            return slot;
+        }
+
+        private int positionVar(String name) {
+            Integer slot = positionVars.get(name);
+            if (slot == null) {
+                throw new IllegalArgumentException("Not a position var " + name);
+            }
+
+            return slot;
+        }
+
+        private int intConstant(int value) {
+            intConstants.add(value);
+            return operand(CONST, intConstants.size() - 1);
+        }
+
+        private int positionConstant(double value) {
+            positionConstants.add(value);
+            return operand(CONST, positionConstants.size() - 1);
+        }
+
+        /**
+         * Resolves an argument read as an integer
+         */
+        private int intOperand(String argument) {
+            if (argument == null) {
+                throw new IllegalArgumentException("Something went very, very wrong");
+            }
+
+            argument = argument.toUpperCase();
+
+            switch (argument) {
+                case "TIME":
+                    return operand(TIME, 0);
+                case "LAST_TIME":
+                    return operand(LAST_TIME, 0);
+                case "ON":
+                    return intConstant(1);
+                case "OFF":
+                    return intConstant(0);
+            }
+
+            try {
+                return intConstant(Integer.parseInt(argument));
+            } catch (NumberFormatException e) {
+                Integer slot;
+                if ((slot = intVars.get(argument)) != null) {
+                    return operand(INT_VAR, slot);
+                }
+            }
+
+            throw new IllegalArgumentException("Not an integer " + argument);
+        }
+
+        /**
+         * Resolves an argument read as a position in degrees
+         */
+        private int positionOperand(String argument) {
+            if (argument == null) {
+                throw new IllegalArgumentException("Something went very, very wrong");
+            }
+
+            argument = argument.toUpperCase();
+
+            switch (argument) {
+                case "AZ":
+                    return operand(AZ, 0);
+                case "EL":
+                    return operand(EL, 0);
+                case "BASE_AZ":
+                    return operand(BASE_AZ, 0);
+                case "BASE_EL":
+                    return operand(BASE_EL, 0);
+            }
+
+            Matcher unitMatcher;
+            if ((unitMatcher = unitsPattern.matcher(argument)).matches()) {
+                return positionConstant(d(Integer.parseInt(unitMatcher.group(1))));
+            }
+
+            Matcher degreesMatcher;
+            if ((degreesMatcher = degreesPattern.matcher(argument)).matches()) {
+                return positionConstant(Double.parseDouble(degreesMatcher.group(1)));
+            }
+
+            Integer slot;
+            if ((slot = positionVars.get(argument)) != null) {
+                return operand(POS_VAR, slot);
+            }
+
+            throw new IllegalArgumentException("Not a position " + argument);
+        }
+
+        private static int operand(int kind, int index) {
+            return (kind << KIND_SHIFT) | index;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package me.alchzh.antenna_control.controller;
+
+/**
+ * Lazily generated points of a scan, in degrees
+ * <p>
+ * A pattern is a cursor: next() computes the following point in place from a few fields of state, so a scan of any
+ * size takes constant memory and nothing is generated ahead of the point being sent. Patterns are laid out on the
+ * plain az/el grid (no cos(el) correction of azimuth).
+ */
+abstract class ScanPattern {
+    protected double az;
+    protected double el;
+
+    /**
+     * @return true if there is another point
+     */
+    abstract boolean hasNext();
+
+    /**
+     * Advances to the next point. Only valid if hasNext() returned true.
+     */
+    abstract void next();
+
+    double getAz() {
+        return az;
+    }
+
+    double getEl() {
+        return el;
+    }
+
+    /**
+     * Rows of increasing elevation, each scanned in increasing azimuth
+     *
+     * @param centerAz Center azimuth
+     * @param centerEl Center elevation
+     * @param width    Azimuth extent
+     * @param height   Elevation extent
+     * @param step     Distance between neighbouring points and rows
+     * @return The pattern
+     */
+    static ScanPattern raster(double centerAz, double centerEl, double width, double height, double step) {
+        return new Grid(centerAz, centerEl, width, height, step, false);
+    }
+
+    /**
+     * Rows of increasing elevation, scanned in alternating directions so the dish never flies back
+     *
+     * @param centerAz Center azimuth
+     * @param centerEl Center elevation
+     * @param width    Azimuth extent
+     * @param height   Elevation extent
+     * @param step     Distance between neighbouring points and rows
+     * @return The pattern
+     */
+    static ScanPattern boustrophedon(double centerAz, double centerEl, double width, double height, double step) {
+        return new Grid(centerAz, centerEl, width, height, step, true);
+    }
+
+    /**
+     * Archimedean spiral out from the center, with turns and points both about step apart
+     *
+     * @param centerAz Center azimuth
+     * @param centerEl Center elevation
+     * @param radius   Radius to stop at
+     * @param step     Distance between neighbouring points and turns
+     * @return The pattern
+     */
+    static ScanPattern spiral(double centerAz, double centerEl, double radius, double step) {
+        return new Spiral(centerAz, centerEl, radius, step);
+    }
+
+    private static void checkStep(double step) {
+        if (!(step > 0)) {
+            throw new IllegalArgumentException("Scan step must be positive");
+        }
+    }
+
+    private static final class Grid extends ScanPattern {
+        private final double startAz;
+        private final double startEl;
+        private final double step;
+        private final long columns;
+        private final long rows;
+        private final boolean alternate;
+        /**
+         * Index of the next point
+         */
+        private long index = 0;
+
+        private Grid(double centerAz, double centerEl, double width, double height, double step, boolean alternate) {
+            checkStep(step);
+
+            // A negative extent (e.g. from a position variable) covers the same box
+            this.step = step;
+            this.columns = (long) Math.floor(Math.abs(width) / step) + 1;
+            this.rows = (long) Math.floor(Math.abs(height) / step) + 1;
+            // Centered on the requested point even when the extent isn't a whole number of steps
+            this.startAz = centerAz - (columns - 1) * step / 2;
+            this.startEl = centerEl - (rows - 1) * step / 2;
+            this.alternate = alternate;
+        }
+
+        @Override
+        boolean hasNext() {
+            return index < columns * rows;
+        }
+
+        @Override
+        void next() {
+            long row = index / columns;
+            long column = index % columns;
+
+            if (alternate && (row & 1) == 1) {
+                column = columns - 1 - column;
+            }
+
+            az = startAz + column * step;
+            el = startEl + row * step;
+            index++;
+        }
+    }
+
+    private static final class Spiral extends ScanPattern {
+        private final double centerAz;
+        private final double centerEl;
+        private final double radius;
+        private final double step;
+        /**
+         * r = spacing * theta puts successive turns step apart
+         */
+        private final double spacing;
+        private double theta = 0;
+
+        private Spiral(double centerAz, double centerEl, double radius, double step) {
+            checkStep(step);
+
+            this.centerAz = centerAz;
+            this.centerEl = centerEl;
+            this.radius = radius;
+            this.step = step;
+            this.spacing = step / (2 * Math.PI);
+        }
+
+        @Override
+        boolean hasNext() {
+            return spacing * theta <= radius;
+        }
+
+        @Override
+        void next() {
+            double r = spacing * theta;
+
+            az = centerAz + r * Math.cos(theta);
+            el = centerEl + r * Math.sin(theta);
+
+            // Arc length of a small turn is about r * dTheta; near the center take bigger turns instead
+            theta += step / Math.max(r, step);
+        }
+    }
+}
@@ -0,0 +1,651 @@
+package me.alchzh.antenna_control.controller;
+
+/**
+ * Orders a set of pointing targets to minimize the total slew time from a start position
+ * <p>
+ * Both axes move at the same speed at once, so a slew takes max(azDist, elDist) / speed and the problem is an open
+ * travelling salesman path under the Chebyshev distance. The order is built greedily (nearest neighbour) and then
+ * improved with 2-opt and Or-opt moves. Every search only looks at each target's few nearest neighbours, found
+ * through a 2-d tree, so planning stays fast for tens of thousands of targets however they are spread.
+ * <p>
+ * Positions are in units, like the rest of the protocol.
+ */
+public class SlewPlanner {
+    /**
+     * Candidate neighbours per target for improvement moves
+     */
+    private static final int NEIGHBOURS = 8;
+    /**
+     * Longest run of targets an Or-opt move relocates
+     */
+    private static final int MAX_SEGMENT = 3;
+
+    private final int speed;
+    private final int minAz;
+    private final int maxAz;
+    private final int minEl;
+    private final int maxEl;
+
+    /**
+     * @param speed Slew speed in units / millisecond (CONTROL_SPEED)
+     * @param minAz Minimum azimuth (CONTROL_POSITION_RANGE)
+     * @param maxAz Maximum azimuth
+     * @param minEl Minimum elevation
+     * @param maxEl Maximum elevation
+     */
+    public SlewPlanner(int speed, int minAz, int maxAz, int minEl, int maxEl) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("Speed must be positive");
+        }
+
+        this.speed = speed;
+        this.minAz = minAz;
+        this.maxAz = maxAz;
+        this.minEl = minEl;
+        this.maxEl = maxEl;
+    }
+
+    /**
+     * Creates a planner for the device a controller is connected to. The device must have sent its control info.
+     *
+     * @param controller The controller
+     * @return The planner
+     */
+    public static SlewPlanner forController(AntennaController controller) {
+        return new SlewPlanner(controller.getSpeed(), controller.getMinAz(), controller.getMaxAz(),
+                controller.getMinEl(), controller.getMaxEl());
+    }
+
+    /**
+     * Finds a short order to visit every target in
+     *
+     * @param startAz Azimuth the dish starts at
+     * @param startEl Elevation the dish starts at
+     * @param az      Target azimuths
+     * @param el      Target elevations
+     * @return Indices of the targets in visiting order
+     * @throws IllegalArgumentException If a target is outside the position range
+     */
+    public int[] plan(int startAz, int startEl, int[] az, int[] el) {
+        int n = az.length;
+        if (el.length != n) {
+            throw new IllegalArgumentException("Need as many elevations as azimuths");
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (az[i] < minAz || az[i] > maxAz || el[i] < minEl || el[i] > maxEl) {
+                throw new IllegalArgumentException("Target " + i + " is outside the position range");
+            }
+        }
+
+        if (n == 0) return new int[0];
+
+        Tour tour = new Tour(startAz, startEl, az, el);
+        tour.nearestNeighbour();
+        tour.improve();
+
+        int[] order = new int[n];
+        System.arraycopy(tour.path, 1, order, 0, n);
+
+        return order;
+    }
+
+    /**
+     * @param startAz Azimuth the dish starts at
+     * @param startEl Elevation the dish starts at
+     * @param az      Target azimuths
+     * @param el      Target elevations
+     * @param order   Indices of the targets in visiting order
+     * @return Total slew time in milliseconds
+     */
+    public long slewTime(int startAz, int startEl, int[] az, int[] el, int[] order) {
+        long total = 0;
+        long x = startAz;
+        long y = startEl;
+
+        for (int i : order) {
+            total += Math.max(Math.abs(az[i] - x), Math.abs(el[i] - y));
+            x = az[i];
+            y = el[i];
+        }
+
+        return total / speed;
+    }
+
+    /**
+     * Writes the targets as an AntennaScript that visits them in order with G0
+     * Positions are written in units, so every target must be at a non-negative position.
+     *
+     * @param az    Target azimuths
+     * @param el    Target elevations
+     * @param order Indices of the targets in visiting order
+     * @return The script
+     */
+    public String toScript(int[] az, int[] el, int[] order) {
+        StringBuilder sb = new StringBuilder(order.length * 24 + 32);
+        sb.append("# ").append(order.length).append(" targets in slew optimized order\n");
+
+        for (int i : order) {
+            if (az[i] < 0 || el[i] < 0) {
+                throw new IllegalArgumentException("Scripts can't express negative position of target " + i);
+            }
+
+            sb.append("G0 ").append(az[i]).append("u ").append(el[i]).append("u\n");
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Packs the targets as waypoints for AntennaCommand.trajectory
+     *
+     * @param az    Target azimuths
+     * @param el    Target elevations
+     * @param order Indices of the targets in visiting order
+     * @param time  Time in milliseconds each waypoint takes at least
+     * @return Packed (az, el, time) triples
+     */
+    public int[] toWaypoints(int[] az, int[] el, int[] order, int time) {
+        int[] waypoints = new int[3 * order.length];
+
+        for (int n = 0; n < order.length; n++) {
+            waypoints[3 * n] = az[order[n]];
+            waypoints[3 * n + 1] = el[order[n]];
+            waypoints[3 * n + 2] = time;
+        }
+
+        return waypoints;
+    }
+
+    /**
+     * A path through the targets, starting at the fixed start node. Targets are nodes 0 to n - 1, the start is n.
+     */
+    private static final class Tour {
+        private final int n;
+        private final long[] x;
+        private final long[] y;
+        /**
+         * Nodes in visiting order. path[0] is always the start.
+         */
+        private final int[] path;
+        /**
+         * Index of each node in path
+         */
+        private final int[] pos;
+        /**
+         * NEIGHBOURS nearest nodes of each node, -1 padded
+         */
+        private final int[] neighbours;
+        private final int[] segment = new int[MAX_SEGMENT];
+
+        private Tour(int startAz, int startEl, int[] az, int[] el) {
+            n = az.length;
+            x = new long[n + 1];
+            y = new long[n + 1];
+
+            for (int i = 0; i < n; i++) {
+                x[i] = az[i];
+                y[i] = el[i];
+            }
+            x[n] = startAz;
+            y[n] = startEl;
+
+            path = new int[n + 1];
+            pos = new int[n + 1];
+            neighbours = new int[(n + 1) * NEIGHBOURS];
+        }
+
+        private long d(int a, int b) {
+            return Math.max(Math.abs(x[a] - x[b]), Math.abs(y[a] - y[b]));
+        }
+
+        /**
+         * Builds the initial path by always slewing to the closest unvisited target, and fills the neighbour lists
+         */
+        private void nearestNeighbour() {
+            KdTree all = new KdTree(x, y, n + 1);
+            long[] bestDistances = new long[NEIGHBOURS];
+            for (int node = 0; node <= n; node++) {
+                all.nearest(node, neighbours, node * NEIGHBOURS, bestDistances);
+            }
+
+            KdTree remaining = new KdTree(x, y, n);
+            path[0] = n;
+            pos[n] = 0;
+
+            int current = n;
+            for (int i = 1; i <= n; i++) {
+                int next = remaining.nearest(x[current], y[current]);
+                remaining.remove(next);
+
+                path[i] = next;
+                pos[next] = i;
+                current = next;
+            }
+        }
+
+        /**
+         * Applies improving 2-opt and Or-opt moves until none is left. Nodes whose edges changed are queued to be
+         * looked at again (don't-look bits).
+         */
+        private void improve() {
+            int[] queue = new int[n + 1];
+            boolean[] queued = new boolean[n + 1];
+            int head = 0;
+            int size = 0;
+
+            for (int i = 0; i <= n; i++) {
+                queue[i] = path[i];
+                queued[path[i]] = true;
+            }
+            size = n + 1;
+
+            int[] touched = new int[2 * MAX_SEGMENT + 2];
+
+            while (size > 0) {
+                int a = queue[head];
+                head = (head + 1) % queue.length;
+                size--;
+                queued[a] = false;
+
+                int count = twoOpt(a, touched);
+                if (count == 0) count = orOpt(a, touched);
+
+                for (int i = 0; i < count; i++) {
+                    int node = touched[i];
+                    if (node >= 0 && !queued[node]) {
+                        queued[node] = true;
+                        queue[(head + size) % queue.length] = node;
+                        size++;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Tries to make an edge from a to one of its neighbours by reversing part of the path
+         *
+         * @return Number of nodes written to touched, or 0 if there was no improving move
+         */
+        private int twoOpt(int a, int[] touched) {
+            for (int k = 0; k < NEIGHBOURS; k++) {
+                int c = neighbours[a * NEIGHBOURS + k];
+                if (c < 0) break;
+
+                int lo = Math.min(pos[a], pos[c]);
+                int hi = Math.max(pos[a], pos[c]);
+
+                // Successor variant: reverse path[lo + 1..hi], linking path[lo]-path[hi] and path[lo + 1]-path[hi + 1]
+                if (hi > lo + 1) {
+                    int p = path[lo];
+                    int pNext = path[lo + 1];
+                    int q = path[hi];
+                    int qNext = hi < n ? path[hi + 1] : -1;
+
+                    long delta = d(p, q) - d(p, pNext);
+                    if (qNext >= 0) delta += d(pNext, qNext) - d(q, qNext);
+
+                    if (delta < 0) {
+                        reverse(lo + 1, hi);
+                        return touch(touched, p, pNext, q, qNext);
+                    }
+                }
+
+                // Predecessor variant: reverse path[lo..hi - 1], linking path[lo - 1]-path[hi - 1] and path[lo]-path[hi]
+                if (lo >= 1 && hi - 1 > lo) {
+                    int pPrev = path[lo - 1];
+                    int p = path[lo];
+                    int qPrev = path[hi - 1];
+                    int q = path[hi];
+
+                    long delta = d(pPrev, qPrev) + d(p, q) - d(pPrev, p) - d(qPrev, q);
+
+                    if (delta < 0) {
+                        reverse(lo, hi - 1);
+                        return touch(touched, pPrev, p, qPrev, q);
+                    }
+                }
+            }
+
+            return 0;
+        }
+
+        /**
+         * Tries to move a run of up to MAX_SEGMENT targets starting at a next to a neighbour of either end,
+         * possibly reversed
+         *
+         * @return Number of nodes written to touched, or 0 if there was no improving move
+         */
+        private int orOpt(int a, int[] touched) {
+            int i = pos[a];
+            if (i == 0) return 0;
+
+            for (int length = 1; length <= MAX_SEGMENT && i + length - 1 <= n; length++) {
+                int end = i + length - 1;
+                int first = path[i];
+                int last = path[end];
+                int prev = path[i - 1];
+                int next = end < n ? path[end + 1] : -1;
+
+                long removeGain = d(prev, first);
+                if (next >= 0) removeGain += d(last, next) - d(prev, next);
+                if (removeGain <= 0) continue;
+
+                for (int side = 0; side < 2; side++) {
+                    int from = side == 0 ? first : last;
+
+                    for (int k = 0; k < NEIGHBOURS; k++) {
+                        int c = neighbours[from * NEIGHBOURS + k];
+                        if (c < 0) break;
+
+                        // Insert between path[at] and path[at + 1], next to c on either side
+                        for (int at = pos[c] - 1; at <= pos[c]; at++) {
+                            if (at < 0 || (at >= i - 1 && at <= end)) continue;
+
+                            int p = path[at];
+                            int q = at < n ? path[at + 1] : -1;
+
+                            long forward = d(p, first);
+                            long reversed = d(p, last);
+                            if (q >= 0) {
+                                forward += d(last, q) - d(p, q);
+                                reversed += d(first, q) - d(p, q);
+                            }
+
+                            long addCost = Math.min(forward, reversed);
+                            if (addCost < removeGain) {
+                                moveSegment(i, length, at, reversed < forward);
+
+                                int count = touch(touched, prev, next, p, q);
+                                touched[count++] = first;
+                                touched[count++] = last;
+                                return count;
+                            }
+                        }
+                    }
+                }
+            }
+
+            return 0;
+        }
+
+        private static int touch(int[] touched, int a, int b, int c, int d) {
+            touched[0] = a;
+            touched[1] = b;
+            touched[2] = c;
+            touched[3] = d;
+            return 4;
+        }
+
+        private void reverse(int from, int to) {
+            while (from < to) {
+                int tmp = path[from];
+                path[from] = path[to];
+                path[to] = tmp;
+
+                pos[path[from]] = from;
+                pos[path[to]] = to;
+
+                from++;
+                to--;
+            }
+        }
+
+        /**
+         * Moves path[i..i + length - 1] to between path[at] and path[at + 1]
+         */
+        private void moveSegment(int i, int length, int at, boolean reversed) {
+            for (int k = 0; k < length; k++) {
+                segment[k] = path[reversed ? i + length - 1 - k : i + k];
+            }
+
+            int from;
+            int to;
+
+            if (at > i) {
+                // Close the gap by shifting what's between left, then put the segment after it
+                System.arraycopy(path, i + length, path, i, at - (i + length) + 1);
+                System.arraycopy(segment, 0, path, at - length + 1, length);
+                from = i;
+                to = at;
+            } else {
+                System.arraycopy(path, at + 1, path, at + 1 + length, i - (at + 1));
+                System.arraycopy(segment, 0, path, at + 1, length);
+                from = at + 1;
+                to = i + length - 1;
+            }
+
+            for (int k = from; k <= to; k++) {
+                pos[path[k]] = k;
+            }
+        }
+    }
+
+    /**
+     * Balanced 2-d tree over a set of nodes for nearest neighbour searches under the Chebyshev distance
+     * Every range is split at the median of its wider axis, so targets on one elevation, or a dense cluster with a
+     * far outlier, are searched as fast as evenly spread ones. Removed nodes stay in the tree; subtrees with no
+     * nodes left are skipped.
+     */
+    private static final class KdTree {
+        private final long[] x;
+        private final long[] y;
+        private final int count;
+        /**
+         * Nodes in tree order: the subtree over order[lo..hi - 1] is split at node order[(lo + hi) >>> 1]
+         */
+        private final int[] order;
+        /**
+         * Index of each node in order
+         */
+        private final int[] position;
+        /**
+         * Per position in order: whether the split is on y, nodes left in the subtree split there, and whether
+         * the node there was removed
+         */
+        private final boolean[] splitY;
+        private final int[] alive;
+        private final boolean[] removed;
+
+        /*
+         * State of the current search
+         */
+        private int best;
+        private long bestDistance;
+        private int found;
+
+        /**
+         * @param x     X (az) of every node
+         * @param y     Y (el) of every node
+         * @param count Index nodes 0 to count - 1
+         */
+        private KdTree(long[] x, long[] y, int count) {
+            this.x = x;
+            this.y = y;
+            this.count = count;
+
+            order = new int[count];
+            position = new int[count];
+            splitY = new boolean[count];
+            alive = new int[count];
+            removed = new boolean[count];
+
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            build(0, count);
+            for (int p = 0; p < count; p++) {
+                position[order[p]] = p;
+            }
+        }
+
+        private void build(int lo, int hi) {
+            if (lo >= hi) return;
+
+            long minX = Long.MAX_VALUE, maxX = Long.MIN_VALUE, minY = Long.MAX_VALUE, maxY = Long.MIN_VALUE;
+            for (int i = lo; i < hi; i++) {
+                int node = order[i];
+                minX = Math.min(minX, x[node]);
+                maxX = Math.max(maxX, x[node]);
+                minY = Math.min(minY, y[node]);
+                maxY = Math.max(maxY, y[node]);
+            }
+
+            int mid = (lo + hi) >>> 1;
+            boolean onY = maxY - minY > maxX - minX;
+            select(lo, hi - 1, mid, onY);
+
+            splitY[mid] = onY;
+            alive[mid] = hi - lo;
+
+            build(lo, mid);
+            build(mid + 1, hi);
+        }
+
+        private long key(int node, boolean onY) {
+            return onY ? y[node] : x[node];
+        }
+
+        /**
+         * Rearranges order[lo..hi] so order[k] holds the node that sorts there, with no greater key before it and
+         * no smaller key after it
+         */
+        private void select(int lo, int hi, int k, boolean onY) {
+            while (lo < hi) {
+                long pivot = key(order[(lo + hi) >>> 1], onY);
+                int i = lo;
+                int j = hi;
+
+                while (i <= j) {
+                    while (key(order[i], onY) < pivot) i++;
+                    while (key(order[j], onY) > pivot) j--;
+
+                    if (i <= j) {
+                        int t = order[i];
+                        order[i] = order[j];
+                        order[j] = t;
+                        i++;
+                        j--;
+                    }
+                }
+
+                if (k <= j) {
+                    hi = j;
+                } else if (k >= i) {
+                    lo = i;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void remove(int node) {
+            int p = position[node];
+            int lo = 0;
+            int hi = count;
+
+            while (true) {
+                int mid = (lo + hi) >>> 1;
+                alive[mid]--;
+
+                if (mid == p) {
+                    removed[p] = true;
+                    return;
+                }
+
+                if (p < mid) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+        }
+
+        /**
+         * @return The closest node still in the tree, or -1 if it is empty
+         */
+        private int nearest(long px, long py) {
+            best = -1;
+            bestDistance = Long.MAX_VALUE;
+            searchNearest(0, count, px, py);
+
+            return best;
+        }
+
+        private void searchNearest(int lo, int hi, long px, long py) {
+            if (lo >= hi) return;
+
+            int mid = (lo + hi) >>> 1;
+            if (alive[mid] == 0) return;
+
+            int node = order[mid];
+            if (!removed[mid]) {
+                long distance = Math.max(Math.abs(x[node] - px), Math.abs(y[node] - py));
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = node;
+                }
+            }
+
+            // Everything across the split is at least |diff| away
+            long diff = splitY[mid] ? py - y[node] : px - x[node];
+            if (diff < 0) {
+                searchNearest(lo, mid, px, py);
+                if (-diff < bestDistance) searchNearest(mid + 1, hi, px, py);
+            } else {
+                searchNearest(mid + 1, hi, px, py);
+                if (diff < bestDistance) searchNearest(lo, mid, px, py);
+            }
+        }
+
+        /**
+         * Writes the NEIGHBOURS closest other nodes of a node, closest first, -1 padded
+         */
+        private void nearest(int node, int[] out, int offset, long[] distances) {
+            for (int k = 0; k < NEIGHBOURS; k++) {
+                out[offset + k] = -1;
+                distances[k] = Long.MAX_VALUE;
+            }
+
+            found = 0;
+            searchNeighbours(0, count, node, out, offset, distances);
+        }
+
+        private void searchNeighbours(int lo, int hi, int node, int[] out, int offset, long[] distances) {
+            if (lo >= hi) return;
+
+            int mid = (lo + hi) >>> 1;
+            if (alive[mid] == 0) return;
+
+            long px = x[node];
+            long py = y[node];
+            int other = order[mid];
+
+            if (!removed[mid] && other != node) {
+                long distance = Math.max(Math.abs(x[other] - px), Math.abs(y[other] - py));
+
+                if (distance < distances[NEIGHBOURS - 1]) {
+                    // Insertion into the sorted list
+                    int k = Math.min(found, NEIGHBOURS - 1);
+                    while (k > 0 && distances[k - 1] > distance) {
+                        distances[k] = distances[k - 1];
+                        out[offset + k] = out[offset + k - 1];
+                        k--;
+                    }
+                    distances[k] = distance;
+                    out[offset + k] = other;
+                    if (found < NEIGHBOURS) found++;
+                }
+            }
+
+            long diff = splitY[mid] ? py - y[other] : px - x[other];
+            if (diff < 0) {
+                searchNeighbours(lo, mid, node, out, offset, distances);
+                if (-diff < distances[NEIGHBOURS - 1]) searchNeighbours(mid + 1, hi, node, out, offset, distances);
+            } else {
+                searchNeighbours(mid + 1, hi, node, out, offset, distances);
+                if (diff < distances[NEIGHBOURS - 1]) searchNeighbours(lo, mid, node, out, offset, distances);
+            }
+        }
+    }
+}
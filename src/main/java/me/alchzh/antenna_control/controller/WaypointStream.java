@@ -0,0 +1,158 @@
+package me.alchzh.antenna_control.controller;
+
+import me.alchzh.antenna_control.device.AntennaCommand;
+import me.alchzh.antenna_control.device.AntennaDevice;
+import me.alchzh.antenna_control.device.AntennaEvent;
+import me.alchzh.antenna_control.device.EventEmitter;
+
+import java.util.EnumSet;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Streams waypoints from a script into the trajectory queue of a device
+ * <p>
+ * Waypoints are collected into batches sent as one TRAJECTORY command each. At most WINDOW waypoints are left
+ * unreached at the device at any time, counted down by WAYPOINT_REACHED events, so the queue stays fed without
+ * overflowing. Counting assumes this stream is the only one feeding the device's queue.
+ */
+final class WaypointStream implements EventEmitter.Listener<AntennaEvent> {
+    /**
+     * Waypoints per TRAJECTORY command
+     */
+    static final int BATCH_SIZE = 16;
+    /**
+     * Most waypoints sent but not yet reached
+     */
+    static final int WINDOW = 4 * BATCH_SIZE;
+
+    private final AntennaDevice device;
+    private final AntennaDevice events;
+
+    /**
+     * Packed (az, el, time) triples of the batch being collected
+     */
+    private final int[] batch = new int[3 * BATCH_SIZE];
+    private int batchCount = 0;
+
+    /*
+     * Guarded by this
+     */
+    private int outstanding = 0;
+    private CompletableFuture<Void> roomWaiter;
+    private CompletableFuture<Void> drainWaiter;
+
+    /**
+     * @param device Device to submit trajectories through
+     * @param events Device the trajectory events come from (the same device, or the one it forwards to)
+     */
+    WaypointStream(AntennaDevice device, AntennaDevice events) {
+        this.device = device;
+        this.events = events;
+
+        events.addEventListener(
+                EnumSet.of(AntennaEvent.Type.WAYPOINT_REACHED, AntennaEvent.Type.MOVE_CANCELED), this);
+    }
+
+    /**
+     * Adds a waypoint, sending the current batch first if it is full
+     *
+     * @param az   Azimuth (units)
+     * @param el   Elevation (units)
+     * @param time Time in milliseconds to take from the previous waypoint
+     * @return null if the waypoint was added, or a future to wait on before adding it again
+     */
+    CompletableFuture<Void> add(int az, int el, int time) {
+        if (batchCount == BATCH_SIZE) {
+            CompletableFuture<Void> room = flush();
+            if (room != null) return room;
+        }
+
+        batch[3 * batchCount] = az;
+        batch[3 * batchCount + 1] = el;
+        batch[3 * batchCount + 2] = time;
+        batchCount++;
+
+        return null;
+    }
+
+    /**
+     * Sends the waypoints collected so far
+     *
+     * @return null if they were sent (or there were none), or a future to wait on before flushing again
+     */
+    CompletableFuture<Void> flush() {
+        if (batchCount == 0) return null;
+
+        int count = batchCount;
+
+        synchronized (this) {
+            if (outstanding + count > WINDOW) {
+                if (roomWaiter == null) roomWaiter = new CompletableFuture<>();
+                return roomWaiter;
+            }
+
+            outstanding += count;
+        }
+
+        // Submitted outside the lock, the device may call back into eventOccurred while it holds its own
+        device.submitCommandAsync(AntennaCommand.trajectory(batch, count))
+                .whenComplete((event, e) -> {
+                    if (e != null) {
+                        e.printStackTrace();
+                        release(count);
+                    }
+                });
+        batchCount = 0;
+
+        return null;
+    }
+
+    /**
+     * @return Future completed once every waypoint sent has been reached, or the trajectory was canceled
+     */
+    synchronized CompletableFuture<Void> drained() {
+        if (outstanding == 0) return CompletableFuture.completedFuture(null);
+
+        if (drainWaiter == null) drainWaiter = new CompletableFuture<>();
+        return drainWaiter;
+    }
+
+    /**
+     * Stops listening to the device. Waypoints not flushed are dropped.
+     */
+    void close() {
+        events.removeEventListener(this);
+    }
+
+    @Override
+    public void eventOccurred(AntennaEvent event) {
+        if (event.type == AntennaEvent.Type.WAYPOINT_REACHED) {
+            release(1);
+        } else {
+            // A canceled move empties the queue
+            release(Integer.MAX_VALUE);
+        }
+    }
+
+    private void release(int count) {
+        CompletableFuture<Void> room = null;
+        CompletableFuture<Void> drain = null;
+
+        synchronized (this) {
+            outstanding = Math.max(0, outstanding - count);
+
+            if (roomWaiter != null && outstanding + BATCH_SIZE <= WINDOW) {
+                room = roomWaiter;
+                roomWaiter = null;
+            }
+
+            if (drainWaiter != null && outstanding == 0) {
+                drain = drainWaiter;
+                drainWaiter = null;
+            }
+        }
+
+        if (room != null) room.complete(null);
+        if (drain != null) drain.complete(null);
+    }
+}
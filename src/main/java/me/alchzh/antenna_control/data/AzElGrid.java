@@ -0,0 +1,75 @@
+package me.alchzh.antenna_control.data;
+
+/**
+ * A grid of tiles of equal size in az and el, numbered row by row from the lowest elevation
+ * Simple to render as an image, but tiles near the zenith cover far less sky than tiles at the horizon.
+ */
+public class AzElGrid implements SkyGrid {
+    private final int minAz;
+    private final int minEl;
+    private final long azSpan;
+    private final long elSpan;
+    private final int azBins;
+    private final int elBins;
+
+    /**
+     * @param minAz  Least azimuth in position units
+     * @param maxAz  Greatest azimuth in position units
+     * @param minEl  Least elevation in position units
+     * @param maxEl  Greatest elevation in position units
+     * @param azBins Tiles across
+     * @param elBins Tiles up
+     */
+    public AzElGrid(int minAz, int maxAz, int minEl, int maxEl, int azBins, int elBins) {
+        if (minAz >= maxAz || minEl >= maxEl) {
+            throw new IllegalArgumentException("Empty grid range");
+        }
+        if (azBins <= 0 || elBins <= 0 || (long) azBins * elBins > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid number of tiles");
+        }
+
+        this.minAz = minAz;
+        this.minEl = minEl;
+        this.azSpan = (long) maxAz - minAz;
+        this.elSpan = (long) maxEl - minEl;
+        this.azBins = azBins;
+        this.elBins = elBins;
+    }
+
+    public int getAzBins() {
+        return azBins;
+    }
+
+    public int getElBins() {
+        return elBins;
+    }
+
+    @Override
+    public int getPixelCount() {
+        return azBins * elBins;
+    }
+
+    @Override
+    public int pixelOf(int az, int el) {
+        long x = (long) az - minAz;
+        long y = (long) el - minEl;
+
+        if (x < 0 || x > azSpan || y < 0 || y > elSpan) return -1;
+
+        // The greatest az and el belong to the last tile
+        int col = (int) Math.min(x * azBins / azSpan, azBins - 1);
+        int row = (int) Math.min(y * elBins / elSpan, elBins - 1);
+
+        return row * azBins + col;
+    }
+
+    @Override
+    public int getCenterAz(int pixel) {
+        return (int) (minAz + ((2L * (pixel % azBins) + 1) * azSpan) / (2L * azBins));
+    }
+
+    @Override
+    public int getCenterEl(int pixel) {
+        return (int) (minEl + ((2L * (pixel / azBins) + 1) * elSpan) / (2L * elBins));
+    }
+}
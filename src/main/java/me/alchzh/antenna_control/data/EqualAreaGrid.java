@@ -0,0 +1,119 @@
+package me.alchzh.antenna_control.data;
+
+import java.util.Arrays;
+
+import static me.alchzh.antenna_control.util.Units.d;
+
+/**
+ * An igloo grid: rings of equal height in el, each cut into as many pixels as fit at the cosine of its elevation,
+ * so every pixel covers about the same solid angle (within a pixel's height of the zenith, where rings are
+ * shortest). Pixels are numbered ring by ring from the lowest elevation.
+ * <p>
+ * Finding a pixel is a division for the ring and another for the column; the trigonometry is all done when the
+ * grid is built.
+ */
+public class EqualAreaGrid implements SkyGrid {
+    private final int minAz;
+    private final int minEl;
+    private final long azSpan;
+    private final long elSpan;
+    private final int rings;
+    /**
+     * Pixels in every ring
+     */
+    private final int[] ringPixels;
+    /**
+     * Number of the first pixel of every ring, and the pixel count at the end
+     */
+    private final int[] ringStart;
+
+    /**
+     * @param minAz     Least azimuth in position units
+     * @param maxAz     Greatest azimuth in position units
+     * @param minEl     Least elevation in position units
+     * @param maxEl     Greatest elevation in position units
+     * @param pixelSize Greatest height of a ring in position units. The elevation range is split into rings of equal
+     *                  height no taller than this, and a pixel at the horizon is as wide as a ring is tall.
+     */
+    public EqualAreaGrid(int minAz, int maxAz, int minEl, int maxEl, int pixelSize) {
+        if (minAz >= maxAz || minEl >= maxEl) {
+            throw new IllegalArgumentException("Empty grid range");
+        }
+        if (pixelSize <= 0) {
+            throw new IllegalArgumentException("Pixel size must be positive");
+        }
+
+        this.minAz = minAz;
+        this.minEl = minEl;
+        this.azSpan = (long) maxAz - minAz;
+        this.elSpan = (long) maxEl - minEl;
+        this.rings = (int) ((elSpan + pixelSize - 1) / pixelSize);
+        // Less than pixelSize when it doesn't divide the range; widths have to follow, or pixels aren't equal-area
+        double ringHeight = (double) elSpan / rings;
+
+        ringPixels = new int[rings];
+        ringStart = new int[rings + 1];
+
+        long total = 0;
+        for (int i = 0; i < rings; i++) {
+            double centerEl = Math.toRadians(d(ringCenter(i)));
+            long n = Math.max(1, Math.round(azSpan * Math.cos(centerEl) / ringHeight));
+
+            ringPixels[i] = (int) n;
+            ringStart[i] = (int) total;
+            total += n;
+
+            if (total > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many pixels");
+            }
+        }
+        ringStart[rings] = (int) total;
+    }
+
+    public int getRingCount() {
+        return rings;
+    }
+
+    @Override
+    public int getPixelCount() {
+        return ringStart[rings];
+    }
+
+    @Override
+    public int pixelOf(int az, int el) {
+        long x = (long) az - minAz;
+        long y = (long) el - minEl;
+
+        if (x < 0 || x > azSpan || y < 0 || y > elSpan) return -1;
+
+        int ring = (int) Math.min(y * rings / elSpan, rings - 1);
+        int n = ringPixels[ring];
+        int col = (int) Math.min(x * n / azSpan, n - 1);
+
+        return ringStart[ring] + col;
+    }
+
+    @Override
+    public int getCenterAz(int pixel) {
+        int ring = ringOf(pixel);
+        int n = ringPixels[ring];
+
+        return (int) (minAz + ((2L * (pixel - ringStart[ring]) + 1) * azSpan) / (2L * n));
+    }
+
+    @Override
+    public int getCenterEl(int pixel) {
+        return ringCenter(ringOf(pixel));
+    }
+
+    private int ringCenter(int ring) {
+        return (int) (minEl + ((2L * ring + 1) * elSpan) / (2L * rings));
+    }
+
+    private int ringOf(int pixel) {
+        int i = Arrays.binarySearch(ringStart, pixel);
+
+        // Rings never have zero pixels, so an exact match is the ring's first pixel
+        return i >= 0 ? i : -i - 2;
+    }
+}
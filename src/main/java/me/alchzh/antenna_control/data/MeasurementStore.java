@@ -0,0 +1,616 @@
+package me.alchzh.antenna_control.data;
+
+import me.alchzh.antenna_control.controller.AntennaController;
+import me.alchzh.antenna_control.device.AntennaEvent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A columnar store of measurements in memory-mapped files
+ * <p>
+ * Every measurement is a row of time (ms since the epoch), az, el (position units) and one float per channel. Each
+ * field is kept in a column file of its own, divided into blocks of blockRows rows; within a block of the values
+ * column each channel is contiguous, so reading one channel over time only touches that channel's floats. The
+ * index file holds, per block, its row count and the min/max of time, az and el. A query checks those first and
+ * only maps the blocks that can hold matching rows, so a range of an hour in days of data reads a handful of blocks.
+ * <pre>
+ * directory/index.col  int magic | int version | int channels | int blockRows | int blockCount | (pad) | entries
+ *           entry      long minTime | long maxTime | int minAz | int maxAz | int minEl | int maxEl | int rows | (pad)
+ *           time.col   long per row
+ *           az.col     int per row
+ *           el.col     int per row
+ *           values.col per block: float[blockRows] for every channel
+ * </pre>
+ * A block's row count is written after the row itself, so a row is either complete or not there at all. Opening a
+ * store that already exists continues after its last row.
+ */
+public class MeasurementStore implements AntennaController.MeasurementListener, Closeable {
+    public static final int DEFAULT_BLOCK_ROWS = 1024;
+    private static final int MAGIC = 0x414D5354; // "AMST"
+    private static final int VERSION = 1;
+    /**
+     * Padded to keep the entries' longs aligned
+     */
+    private static final int INDEX_HEADER_BYTES = 6 * Integer.BYTES;
+    private static final int INDEX_ENTRY_BYTES = 2 * Long.BYTES + 6 * Integer.BYTES;
+    private static final int BLOCK_COUNT_OFFSET = 4 * Integer.BYTES;
+    private static final int ROWS_OFFSET = 2 * Long.BYTES + 4 * Integer.BYTES;
+    private static final int MIN_INDEX_CAPACITY = 1024;
+
+    private final int channels;
+    private final int blockRows;
+
+    private final FileChannel indexFile;
+    private final FileChannel timeFile;
+    private final FileChannel azFile;
+    private final FileChannel elFile;
+    private final FileChannel valuesFile;
+
+    private AntennaController controller;
+    private float[] scratch;
+
+    /*
+     * Guarded by this
+     */
+    private MappedByteBuffer index;
+    private int indexCapacity;
+    private int blockCount;
+    /**
+     * Columns of the block being appended to, or null before the first append to a new block
+     */
+    private MappedByteBuffer time;
+    private MappedByteBuffer az;
+    private MappedByteBuffer el;
+    private MappedByteBuffer values;
+    private int rows;
+    private long minTime;
+    private long maxTime;
+    private int minAz;
+    private int maxAz;
+    private int minEl;
+    private int maxEl;
+    private long appended = 0;
+    private long skipped = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates a store with blocks of 1024 rows, or opens an existing one
+     *
+     * @param directory Directory of the column files
+     * @param channels  Values per measurement
+     * @throws IOException If the files can't be opened, or the existing store has a different shape
+     */
+    public MeasurementStore(Path directory, int channels) throws IOException {
+        this(directory, channels, DEFAULT_BLOCK_ROWS);
+    }
+
+    /**
+     * Creates a store, or opens an existing one
+     *
+     * @param directory Directory of the column files
+     * @param channels  Values per measurement
+     * @param blockRows Rows per block. Smaller blocks make queries more selective, larger ones make the index
+     *                  smaller.
+     * @throws IOException If the files can't be opened, or the existing store has a different shape
+     */
+    public MeasurementStore(Path directory, int channels, int blockRows) throws IOException {
+        if (channels <= 0 || blockRows <= 0) {
+            throw new IllegalArgumentException("Channels and block rows must be positive");
+        }
+
+        this.channels = channels;
+        this.blockRows = blockRows;
+
+        Files.createDirectories(directory);
+        indexFile = openColumn(directory.resolve("index.col"));
+        timeFile = openColumn(directory.resolve("time.col"));
+        azFile = openColumn(directory.resolve("az.col"));
+        elFile = openColumn(directory.resolve("el.col"));
+        valuesFile = openColumn(directory.resolve("values.col"));
+
+        try {
+            if (indexFile.size() == 0) {
+                mapIndex(MIN_INDEX_CAPACITY);
+                index.putInt(0, MAGIC);
+                index.putInt(4, VERSION);
+                index.putInt(8, channels);
+                index.putInt(12, blockRows);
+                index.putInt(BLOCK_COUNT_OFFSET, 0);
+            } else {
+                ByteBuffer header = readHeader(indexFile, directory);
+
+                if (header.getInt(8) != channels || header.getInt(12) != blockRows) {
+                    throw new IOException(String.format("Store in %s has %d channels and %d rows per block",
+                            directory, header.getInt(8), header.getInt(12)));
+                }
+
+                blockCount = header.getInt(BLOCK_COUNT_OFFSET);
+                mapIndex(Math.max(MIN_INDEX_CAPACITY, blockCount * 2));
+                resumeLastBlock();
+            }
+        } catch (IOException e) {
+            closeFiles();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing store with the shape it was created with
+     *
+     * @param directory Directory of the column files
+     * @return The store
+     * @throws IOException If the directory doesn't hold a store
+     */
+    public static MeasurementStore open(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve("index.col"), StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel, directory);
+            return new MeasurementStore(directory, header.getInt(8), header.getInt(12));
+        }
+    }
+
+    /**
+     * Stores every measurement a controller receives, at the position the controller knows when it arrives, until
+     * the store is closed. Measurements are stored on the device's thread, so none are lost to async dispatch. Measurements with a different number of channels are skipped.
+     *
+     * @param controller Controller to store measurements of
+     * @param directory  Directory of the column files
+     * @param channels   Values per measurement
+     * @return The store
+     * @throws IOException If the files can't be opened, or the existing store has a different shape
+     */
+    public static MeasurementStore tap(AntennaController controller, Path directory, int channels)
+            throws IOException {
+        MeasurementStore store = new MeasurementStore(directory, channels);
+        store.controller = controller;
+        store.scratch = new float[channels];
+        controller.addMeasurementListener(store);
+
+        return store;
+    }
+
+    @Override
+    public void measurementReceived(AntennaEvent event, long epochMilli, int az, int el) {
+        if (event.getMeasurementCount() != channels) {
+            synchronized (this) {
+                skipped++;
+            }
+            return;
+        }
+
+        event.getMeasurements(scratch);
+        append(epochMilli, az, el, scratch, channels);
+    }
+
+    /**
+     * Appends a measurement
+     *
+     * @param time   Time of the measurement in milliseconds since the epoch
+     * @param az     Azimuth in position units
+     * @param el     Elevation in position units
+     * @param values Values, one per channel
+     * @param count  Number of values. Must equal the store's channels.
+     */
+    public synchronized void append(long time, int az, int el, float[] values, int count) {
+        if (count != channels) {
+            throw new IllegalArgumentException(String.format("Expected %d values, got %d", channels, count));
+        }
+        if (closed) return;
+
+        try {
+            if (this.time == null || rows == blockRows) {
+                startBlock();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        int row = rows;
+        this.time.putLong(row * Long.BYTES, time);
+        this.az.putInt(row * Integer.BYTES, az);
+        this.el.putInt(row * Integer.BYTES, el);
+        for (int c = 0; c < channels; c++) {
+            this.values.putFloat((c * blockRows + row) * Float.BYTES, values[c]);
+        }
+
+        minTime = Math.min(minTime, time);
+        maxTime = Math.max(maxTime, time);
+        minAz = Math.min(minAz, az);
+        maxAz = Math.max(maxAz, az);
+        minEl = Math.min(minEl, el);
+        maxEl = Math.max(maxEl, el);
+
+        int entry = entryOffset(blockCount - 1);
+        index.putLong(entry, minTime);
+        index.putLong(entry + 8, maxTime);
+        index.putInt(entry + 16, minAz);
+        index.putInt(entry + 20, maxAz);
+        index.putInt(entry + 24, minEl);
+        index.putInt(entry + 28, maxEl);
+
+        // Commits the row
+        rows = row + 1;
+        index.putInt(entry + ROWS_OFFSET, rows);
+        appended++;
+    }
+
+    /**
+     * Starts a new block and maps its columns. Guarded by this.
+     */
+    private void startBlock() throws IOException {
+        if (blockCount == indexCapacity) {
+            mapIndex(indexCapacity * 2);
+        }
+
+        int block = blockCount;
+        int entry = entryOffset(block);
+        index.putInt(entry + ROWS_OFFSET, 0);
+        blockCount++;
+        index.putInt(BLOCK_COUNT_OFFSET, blockCount);
+
+        mapBlock(block);
+        rows = 0;
+        minTime = Long.MAX_VALUE;
+        maxTime = Long.MIN_VALUE;
+        minAz = Integer.MAX_VALUE;
+        maxAz = Integer.MIN_VALUE;
+        minEl = Integer.MAX_VALUE;
+        maxEl = Integer.MIN_VALUE;
+    }
+
+    /**
+     * Continues appending to the last block if it isn't full. Guarded by this.
+     */
+    private void resumeLastBlock() throws IOException {
+        if (blockCount == 0) return;
+
+        int block = blockCount - 1;
+        int entry = entryOffset(block);
+        int lastRows = index.getInt(entry + ROWS_OFFSET);
+
+        if (lastRows == blockRows) return;
+
+        mapBlock(block);
+        rows = lastRows;
+        minTime = index.getLong(entry);
+        maxTime = index.getLong(entry + 8);
+        minAz = index.getInt(entry + 16);
+        maxAz = index.getInt(entry + 20);
+        minEl = index.getInt(entry + 24);
+        maxEl = index.getInt(entry + 28);
+    }
+
+    private void mapBlock(int block) throws IOException {
+        FileChannel.MapMode mode = FileChannel.MapMode.READ_WRITE;
+        time = timeFile.map(mode, (long) block * blockRows * Long.BYTES, (long) blockRows * Long.BYTES);
+        az = azFile.map(mode, (long) block * blockRows * Integer.BYTES, (long) blockRows * Integer.BYTES);
+        el = elFile.map(mode, (long) block * blockRows * Integer.BYTES, (long) blockRows * Integer.BYTES);
+        values = valuesFile.map(mode, valuesOffset(block), valuesBlockBytes());
+    }
+
+    private void mapIndex(int capacity) throws IOException {
+        index = indexFile.map(FileChannel.MapMode.READ_WRITE, 0,
+                INDEX_HEADER_BYTES + (long) capacity * INDEX_ENTRY_BYTES);
+        indexCapacity = capacity;
+    }
+
+    private static int entryOffset(int block) {
+        return INDEX_HEADER_BYTES + block * INDEX_ENTRY_BYTES;
+    }
+
+    private long valuesOffset(int block) {
+        return (long) block * valuesBlockBytes();
+    }
+
+    private long valuesBlockBytes() {
+        return (long) blockRows * channels * Float.BYTES;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getBlockRows() {
+        return blockRows;
+    }
+
+    /**
+     * @return Number of rows in the store
+     */
+    public synchronized long getRowCount() {
+        if (blockCount == 0) return 0;
+
+        return (long) (blockCount - 1) * blockRows + index.getInt(entryOffset(blockCount - 1) + ROWS_OFFSET);
+    }
+
+    /**
+     * @return Number of measurements appended since the store was opened
+     */
+    public synchronized long getAppendedCount() {
+        return appended;
+    }
+
+    /**
+     * @return Number of measurements from a tapped controller skipped for having a different number of channels
+     */
+    public synchronized long getSkippedCount() {
+        return skipped;
+    }
+
+    /**
+     * Reads every row in a time range
+     *
+     * @param fromTime Start of the range in milliseconds since the epoch, inclusive
+     * @param toTime   End of the range in milliseconds since the epoch, inclusive
+     * @return Cursor over the rows in order
+     */
+    public Cursor query(long fromTime, long toTime) {
+        return query(fromTime, toTime, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads every row in a time range taken inside a region of the sky. All bounds are inclusive.
+     *
+     * @param fromTime Start of the range in milliseconds since the epoch
+     * @param toTime   End of the range in milliseconds since the epoch
+     * @param minAz    Least azimuth in position units
+     * @param maxAz    Greatest azimuth in position units
+     * @param minEl    Least elevation in position units
+     * @param maxEl    Greatest elevation in position units
+     * @return Cursor over the rows in order
+     */
+    public synchronized Cursor query(long fromTime, long toTime, int minAz, int maxAz, int minEl, int maxEl) {
+        return new Cursor(blockCount, fromTime, toTime, minAz, maxAz, minEl, maxEl);
+    }
+
+    /**
+     * Forces everything appended to disk
+     */
+    public synchronized void flush() {
+        if (closed) return;
+
+        if (time != null) {
+            time.force();
+            az.force();
+            el.force();
+            values.force();
+        }
+        index.force();
+    }
+
+    /**
+     * Stops storing, forces everything appended to disk and closes the files. Open cursors can't read blocks they
+     * haven't reached yet.
+     */
+    @Override
+    public void close() {
+        if (controller != null) {
+            controller.removeMeasurementListener(this);
+        }
+
+        synchronized (this) {
+            if (closed) return;
+
+            flush();
+            closed = true;
+            closeFiles();
+        }
+    }
+
+    private void closeFiles() {
+        for (FileChannel channel : new FileChannel[]{indexFile, timeFile, azFile, elFile, valuesFile}) {
+            if (channel == null) continue;
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static FileChannel openColumn(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel, Path directory) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_BYTES);
+        channel.read(header, 0);
+
+        if (header.position() < INDEX_HEADER_BYTES || header.getInt(0) != MAGIC) {
+            throw new IOException("No measurement store in " + directory);
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IOException("Unsupported measurement store version in " + directory);
+        }
+
+        return header;
+    }
+
+    /**
+     * Iterates over the rows matching a query, block by block. Blocks whose index bounds can't match are never
+     * mapped. Not thread safe.
+     */
+    public class Cursor {
+        private final int blockLimit;
+        private final long fromTime;
+        private final long toTime;
+        private final int minAz;
+        private final int maxAz;
+        private final int minEl;
+        private final int maxEl;
+
+        private int block = -1;
+        private int row;
+        private int blockRowCount;
+        /**
+         * Whether every row of the current block matches, so rows needn't be checked
+         */
+        private boolean inside;
+        private ByteBuffer blockTime;
+        private ByteBuffer blockAz;
+        private ByteBuffer blockEl;
+        private ByteBuffer blockValues;
+        private int blocksRead = 0;
+
+        private Cursor(int blockLimit, long fromTime, long toTime, int minAz, int maxAz, int minEl, int maxEl) {
+            this.blockLimit = blockLimit;
+            this.fromTime = fromTime;
+            this.toTime = toTime;
+            this.minAz = minAz;
+            this.maxAz = maxAz;
+            this.minEl = minEl;
+            this.maxEl = maxEl;
+        }
+
+        /**
+         * Moves to the next matching row
+         *
+         * @return false when there are no more
+         * @throws IOException If a block can't be mapped
+         */
+        public boolean next() throws IOException {
+            while (true) {
+                while (blockTime != null && ++row < blockRowCount) {
+                    if (inside || matches(row)) return true;
+                }
+
+                if (!nextBlock()) return false;
+            }
+        }
+
+        private boolean matches(int row) {
+            long t = blockTime.getLong(row * Long.BYTES);
+            int a = blockAz.getInt(row * Integer.BYTES);
+            int e = blockEl.getInt(row * Integer.BYTES);
+
+            return t >= fromTime && t <= toTime && a >= minAz && a <= maxAz && e >= minEl && e <= maxEl;
+        }
+
+        /**
+         * Maps the next block whose bounds overlap the query
+         *
+         * @return false when there are no more blocks
+         */
+        private boolean nextBlock() throws IOException {
+            blockTime = null;
+            blockValues = null;
+
+            while (++block < blockLimit) {
+                long bMinTime, bMaxTime;
+                int bMinAz, bMaxAz, bMinEl, bMaxEl;
+
+                synchronized (MeasurementStore.this) {
+                    if (closed) throw new IOException("Measurement store closed");
+
+                    int entry = entryOffset(block);
+                    blockRowCount = index.getInt(entry + ROWS_OFFSET);
+                    bMinTime = index.getLong(entry);
+                    bMaxTime = index.getLong(entry + 8);
+                    bMinAz = index.getInt(entry + 16);
+                    bMaxAz = index.getInt(entry + 20);
+                    bMinEl = index.getInt(entry + 24);
+                    bMaxEl = index.getInt(entry + 28);
+                }
+
+                if (blockRowCount == 0
+                        || bMaxTime < fromTime || bMinTime > toTime
+                        || bMaxAz < minAz || bMinAz > maxAz
+                        || bMaxEl < minEl || bMinEl > maxEl) {
+                    continue;
+                }
+
+                inside = bMinTime >= fromTime && bMaxTime <= toTime
+                        && bMinAz >= minAz && bMaxAz <= maxAz
+                        && bMinEl >= minEl && bMaxEl <= maxEl;
+
+                FileChannel.MapMode mode = FileChannel.MapMode.READ_ONLY;
+                blockTime = timeFile.map(mode, (long) block * blockRows * Long.BYTES,
+                        (long) blockRowCount * Long.BYTES);
+                blockAz = azFile.map(mode, (long) block * blockRows * Integer.BYTES,
+                        (long) blockRowCount * Integer.BYTES);
+                blockEl = elFile.map(mode, (long) block * blockRows * Integer.BYTES,
+                        (long) blockRowCount * Integer.BYTES);
+                row = -1;
+                blocksRead++;
+
+                return true;
+            }
+
+            return false;
+        }
+
+        /**
+         * @return Time of the current row in milliseconds since the epoch
+         */
+        public long getTime() {
+            return blockTime.getLong(row * Long.BYTES);
+        }
+
+        /**
+         * @return Azimuth of the current row in position units
+         */
+        public int getAz() {
+            return blockAz.getInt(row * Integer.BYTES);
+        }
+
+        /**
+         * @return Elevation of the current row in position units
+         */
+        public int getEl() {
+            return blockEl.getInt(row * Integer.BYTES);
+        }
+
+        /**
+         * @param channel Channel to read
+         * @return Value of one channel of the current row
+         * @throws IOException If the block's values can't be mapped
+         */
+        public float getValue(int channel) throws IOException {
+            return values().getFloat((channel * blockRows + row) * Float.BYTES);
+        }
+
+        /**
+         * Copies every channel of the current row
+         *
+         * @param dst Destination array. Must hold at least getChannels() values.
+         * @return Number of values copied
+         * @throws IOException If the block's values can't be mapped
+         */
+        public int getValues(float[] dst) throws IOException {
+            ByteBuffer v = values();
+
+            for (int c = 0; c < channels; c++) {
+                dst[c] = v.getFloat((c * blockRows + row) * Float.BYTES);
+            }
+
+            return channels;
+        }
+
+        /**
+         * @return Number of blocks mapped so far, out of the blocks the query could have read
+         */
+        public int getBlocksRead() {
+            return blocksRead;
+        }
+
+        /**
+         * Values are only mapped for blocks where they're read
+         */
+        private ByteBuffer values() throws IOException {
+            if (blockValues == null) {
+                blockValues = valuesFile.map(FileChannel.MapMode.READ_ONLY, valuesOffset(block),
+                        valuesBlockBytes());
+            }
+
+            return blockValues;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package me.alchzh.antenna_control.data;
+
+/**
+ * Divides a region of the sky into numbered pixels for SkyMap
+ * <p>
+ * AzElGrid uses tiles of equal size in az and el. EqualAreaGrid narrows the rings towards the zenith so every
+ * pixel covers about the same solid angle.
+ */
+public interface SkyGrid {
+    /**
+     * @return Number of pixels. Pixels are numbered from 0.
+     */
+    int getPixelCount();
+
+    /**
+     * Finds the pixel holding a position. Called for every sample, so it does no trigonometry.
+     *
+     * @param az Azimuth in position units
+     * @param el Elevation in position units
+     * @return The pixel, or -1 if the position is outside the grid
+     */
+    int pixelOf(int az, int el);
+
+    /**
+     * @param pixel The pixel
+     * @return Azimuth of the pixel's center in position units
+     */
+    int getCenterAz(int pixel);
+
+    /**
+     * @param pixel The pixel
+     * @return Elevation of the pixel's center in position units
+     */
+    int getCenterEl(int pixel);
+}
@@ -0,0 +1,250 @@
+package me.alchzh.antenna_control.data;
+
+import me.alchzh.antenna_control.controller.AntennaController;
+import me.alchzh.antenna_control.device.AntennaEvent;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A live map of the sky: the running count, mean and variance of every channel in every pixel of a SkyGrid
+ * <p>
+ * Each sample updates one pixel in place (Welford's method), so the map is always current and never needs a pass
+ * over the data. Counts, means and sums of squared deviations live in direct buffers rather than on the heap, laid
+ * out pixel by pixel so a sample's channels are adjacent. Means and sums are doubles: in float, a pixel's mean
+ * stops following its samples once it has a few million of them. A million pixels of 96 channels take about
+ * 1.5 GB, in as many buffers as it takes to keep each under 2 GB.
+ */
+public class SkyMap implements AntennaController.MeasurementListener {
+    private final SkyGrid grid;
+    private final int channels;
+
+    private float[] scratch;
+
+    /*
+     * Guarded by this
+     */
+    private final IntBuffer counts;
+    /**
+     * Means and sums of squared deviations of chunkPixels pixels per buffer. Those of channel c in pixel p are at
+     * momentIndex(p, c) of moments[p / chunkPixels].
+     */
+    private final DoubleBuffer[] moments;
+    private final int chunkPixels;
+    private long samples = 0;
+    private long outside = 0;
+
+    /**
+     * @param grid     Pixels of the map
+     * @param channels Values per sample
+     */
+    public SkyMap(SkyGrid grid, int channels) {
+        if (channels <= 0) {
+            throw new IllegalArgumentException("Channels must be positive");
+        }
+        if (grid.getPixelCount() <= 0) {
+            throw new IllegalArgumentException("Grid has no pixels");
+        }
+
+        int pixels = grid.getPixelCount();
+        long pixelBytes = 2L * channels * Double.BYTES;
+        if (pixelBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many channels: " + channels);
+        }
+
+        this.grid = grid;
+        this.channels = channels;
+        this.chunkPixels = (int) Math.min(pixels, Integer.MAX_VALUE / pixelBytes);
+
+        counts = ByteBuffer.allocateDirect(pixels * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+
+        moments = new DoubleBuffer[(pixels + chunkPixels - 1) / chunkPixels];
+        for (int i = 0; i < moments.length; i++) {
+            int n = Math.min(chunkPixels, pixels - i * chunkPixels);
+            moments[i] = ByteBuffer.allocateDirect((int) (n * pixelBytes)).order(ByteOrder.nativeOrder())
+                    .asDoubleBuffer();
+        }
+    }
+
+    /**
+     * Maps every measurement a controller receives, at the position the controller knows when it arrives.
+     * Measurements with a different number of channels are skipped. Remove the map with removeMeasurementListener.
+     *
+     * @param controller Controller to map measurements of
+     * @param grid       Pixels of the map
+     * @param channels   Values per measurement
+     * @return The map
+     */
+    public static SkyMap tap(AntennaController controller, SkyGrid grid, int channels) {
+        SkyMap map = new SkyMap(grid, channels);
+        map.scratch = new float[channels];
+        controller.addMeasurementListener(map);
+
+        return map;
+    }
+
+    @Override
+    public void measurementReceived(AntennaEvent event, long epochMilli, int az, int el) {
+        if (event.getMeasurementCount() != channels) return;
+
+        event.getMeasurements(scratch);
+        add(az, el, scratch, channels);
+    }
+
+    /**
+     * Adds a sample to the pixel holding its position
+     *
+     * @param az     Azimuth in position units
+     * @param el     Elevation in position units
+     * @param values Values, one per channel
+     * @param count  Number of values. Must equal the map's channels.
+     * @return The pixel, or -1 if the position is outside the grid
+     */
+    public synchronized int add(int az, int el, float[] values, int count) {
+        if (count != channels) {
+            throw new IllegalArgumentException(String.format("Expected %d values, got %d", channels, count));
+        }
+
+        int pixel = grid.pixelOf(az, el);
+        if (pixel < 0) {
+            outside++;
+            return -1;
+        }
+
+        int n = counts.get(pixel) + 1;
+        counts.put(pixel, n);
+
+        DoubleBuffer chunk = moments[pixel / chunkPixels];
+        int base = momentIndex(pixel, 0);
+        for (int c = 0; c < channels; c++) {
+            int i = base + 2 * c;
+            double mean = chunk.get(i);
+            double delta = values[c] - mean;
+
+            mean += delta / n;
+            chunk.put(i, mean);
+            chunk.put(i + 1, chunk.get(i + 1) + delta * (values[c] - mean));
+        }
+
+        samples++;
+        return pixel;
+    }
+
+    public SkyGrid getGrid() {
+        return grid;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @return Number of samples mapped
+     */
+    public synchronized long getSampleCount() {
+        return samples;
+    }
+
+    /**
+     * @return Number of samples dropped for being outside the grid
+     */
+    public synchronized long getOutsideCount() {
+        return outside;
+    }
+
+    /**
+     * @param pixel The pixel
+     * @return Number of samples in the pixel
+     */
+    public synchronized int getCount(int pixel) {
+        return counts.get(pixel);
+    }
+
+    /**
+     * @param pixel   The pixel
+     * @param channel The channel
+     * @return Mean of the channel in the pixel, or NaN if the pixel has no samples
+     */
+    public synchronized float getMean(int pixel, int channel) {
+        return counts.get(pixel) == 0 ? Float.NaN : (float) mean(pixel, channel);
+    }
+
+    /**
+     * @param pixel   The pixel
+     * @param channel The channel
+     * @return Sample variance of the channel in the pixel, or NaN if the pixel has fewer than two samples
+     */
+    public synchronized float getVariance(int pixel, int channel) {
+        int n = counts.get(pixel);
+        return n < 2 ? Float.NaN : (float) (squaredDeviations(pixel, channel) / (n - 1));
+    }
+
+    /**
+     * Copies the mean of one channel in every pixel, for drawing the map
+     *
+     * @param channel The channel
+     * @param dst     Destination array. Must hold at least getPixelCount() values. Empty pixels are NaN.
+     */
+    public synchronized void getMeans(int channel, float[] dst) {
+        int pixels = grid.getPixelCount();
+
+        for (int p = 0; p < pixels; p++) {
+            dst[p] = counts.get(p) == 0 ? Float.NaN : (float) mean(p, channel);
+        }
+    }
+
+    /**
+     * Copies the sample variance of one channel in every pixel
+     *
+     * @param channel The channel
+     * @param dst     Destination array. Must hold at least getPixelCount() values. Pixels with fewer than two
+     *                samples are NaN.
+     */
+    public synchronized void getVariances(int channel, float[] dst) {
+        int pixels = grid.getPixelCount();
+
+        for (int p = 0; p < pixels; p++) {
+            int n = counts.get(p);
+            dst[p] = n < 2 ? Float.NaN : (float) (squaredDeviations(p, channel) / (n - 1));
+        }
+    }
+
+    /**
+     * Empties every pixel
+     */
+    public synchronized void clear() {
+        int[] zeroCounts = new int[Math.min(counts.capacity(), 1 << 16)];
+        double[] zeroMoments = new double[1 << 16];
+
+        counts.clear();
+        while (counts.hasRemaining()) {
+            counts.put(zeroCounts, 0, Math.min(counts.remaining(), zeroCounts.length));
+        }
+        counts.clear();
+
+        for (DoubleBuffer chunk : moments) {
+            chunk.clear();
+            while (chunk.hasRemaining()) {
+                chunk.put(zeroMoments, 0, Math.min(chunk.remaining(), zeroMoments.length));
+            }
+            chunk.clear();
+        }
+
+        samples = 0;
+        outside = 0;
+    }
+
+    private int momentIndex(int pixel, int channel) {
+        return 2 * ((pixel % chunkPixels) * channels + channel);
+    }
+
+    private double mean(int pixel, int channel) {
+        return moments[pixel / chunkPixels].get(momentIndex(pixel, channel));
+    }
+
+    private double squaredDeviations(int pixel, int channel) {
+        return moments[pixel / chunkPixels].get(momentIndex(pixel, channel) + 1);
+    }
+}
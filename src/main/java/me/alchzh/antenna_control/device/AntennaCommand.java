@@ -1,18 +1,47 @@
 package me.alchzh.antenna_control.device;
 
+import me.alchzh.antenna_control.util.Bytes;
+
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
 
 import static me.alchzh.antenna_control.util.Hex.bytesToHex;
 
 /**
  * Represents a command sent from a controller to a device (or passed from a device to another device)
  * Commands have no timestamp, only a type and arguments in Data.
+ * <p>
+ * A command may carry a correlation id (protocol extension). A tagged command is sent as TAG_CODE, the id and then
+ * the plain frame, and a device that supports tags echoes the id in every event that responds to the command.
+ * Only send tagged commands to devices that support the extension.
  */
 public class AntennaCommand {
+    /**
+     * Length of the code that precedes the data in every command frame
+     */
+    public static final int HEADER_BYTES = 1;
+    /**
+     * Code of the prefix that tags a command with a correlation id
+     */
+    public static final byte TAG_CODE = 0x0F;
+    /**
+     * Length of the tag prefix (code and id)
+     */
+    public static final int TAG_BYTES = 1 + Integer.BYTES;
+    /**
+     * Length of one (az, el, time) waypoint in a TRAJECTORY command
+     */
+    public static final int WAYPOINT_BYTES = 3 * Integer.BYTES;
+    /**
+     * Most waypoints a single TRAJECTORY command may carry
+     */
+    public static final int MAX_WAYPOINTS = 1024;
+
     public final Type type;
     public final byte[] data;
+    /**
+     * Correlation id, or 0 for an untagged command
+     */
+    public final int id;
 
     /**
      * Basic command creation from type and data
@@ -21,11 +50,23 @@ public class AntennaCommand {
      * @param data Command data / body / arguments
      */
     public AntennaCommand(Type type, byte[] data) {
+        this(type, data, 0);
+    }
+
+    /**
+     * Tagged command creation from type and data
+     *
+     * @param type The type of the command
+     * @param data Command data / body / arguments
+     * @param id   Correlation id, or 0 for none
+     */
+    public AntennaCommand(Type type, byte[] data, int id) {
         this.type = type;
 
         // Ensure the length of data
         assert type.getLength() == -1 || type.getLength() == data.length;
         this.data = data;
+        this.id = id;
     }
 
     /**
@@ -39,12 +80,44 @@ public class AntennaCommand {
 
         assert type.getLength() == data.length * Integer.BYTES;
 
-        ByteBuffer d = ByteBuffer.allocate(type.getLength());
-        for (int arg : data) {
-            d.putInt(arg);
+        this.data = new byte[data.length * Integer.BYTES];
+        for (int i = 0; i < data.length; i++) {
+            Bytes.putInt(this.data, i * Integer.BYTES, data[i]);
         }
 
-        this.data = d.array();
+        this.id = 0;
+    }
+
+    /**
+     * @param id Correlation id, or 0 for none
+     * @return The same command carrying the id (shares the data)
+     */
+    public AntennaCommand withId(int id) {
+        return id == this.id ? this : new AntennaCommand(type, data, id);
+    }
+
+    /**
+     * Creates a TRAJECTORY command that appends waypoints to the queue of the device
+     * The dish moves through the waypoints in order without stopping. Each takes at least its time to reach from
+     * the previous one, longer if that would exceed the slew speed.
+     *
+     * @param waypoints Packed (az, el, time in milliseconds) triples
+     * @param count     Number of waypoints to use
+     * @return The command
+     */
+    public static AntennaCommand trajectory(int[] waypoints, int count) {
+        if (count < 0 || count > MAX_WAYPOINTS) {
+            throw new IllegalArgumentException("Bad waypoint count " + count);
+        }
+
+        byte[] data = new byte[Integer.BYTES + count * WAYPOINT_BYTES];
+
+        Bytes.putInt(data, 0, count);
+        for (int i = 0; i < count * 3; i++) {
+            Bytes.putInt(data, Integer.BYTES + i * Integer.BYTES, waypoints[i]);
+        }
+
+        return new AntennaCommand(Type.TRAJECTORY, data);
     }
 
     /**
@@ -54,50 +127,113 @@ public class AntennaCommand {
      * @return The first command found in the byte buffer
      */
     public static AntennaCommand readFromBuffer(ByteBuffer b) {
-        byte code = b.get();
-
-        AntennaCommand.Type type = AntennaCommand.Type.fromCode(code);
-        int length = type.getLength();
-        byte[] data;
-
-        if (length == -1) {
-            // If length unspecified, get new code from next byte
-            byte code2 = b.get();
-            int code2length = AntennaCommand.Type.fromCode(code2).getLength();
-            data = new byte[1 + code2length];
-            data[0] = code2;
-            // b.get(arr, offset, length) let's us read starting from index 1
-            b.get(data, 1, code2length);
-        } else {
-            data = new byte[length];
-            b.get(data);
+        AntennaCommandView view = new AntennaCommandView().wrap(b, b.position());
+        b.position(b.position() + view.getFrameLength());
+
+        return view.toCommand();
+    }
+
+    /**
+     * Finds the length of the data of a command frame without consuming anything from the buffer
+     *
+     * @param b      Buffer holding the frame
+     * @param offset Absolute index of the code byte of the frame
+     * @return Length of the data in bytes, or -1 if the buffer ends before the length can be determined
+     * @throws IllegalArgumentException If the frame has an unknown code
+     */
+    public static int dataLength(ByteBuffer b, int offset) {
+        return Type.CODEC.dataLength(b, offset);
+    }
+
+    /**
+     * Commands of unspecified length carry another command as their data
+     */
+    private static int nestedCommandLength(ByteBuffer b, int dataOffset) {
+        return frameLength(b, dataOffset);
+    }
+
+    /**
+     * TRAJECTORY data is a count followed by that many (az, el, time) waypoints
+     */
+    private static int trajectoryLength(ByteBuffer b, int dataOffset) {
+        if (b.limit() < dataOffset + Integer.BYTES) return -1;
+
+        int count = b.getInt(dataOffset);
+        if (count < 0 || count > MAX_WAYPOINTS) {
+            throw new IllegalArgumentException("Bad waypoint count " + count);
         }
 
-        return new AntennaCommand(AntennaCommand.Type.fromCode(code), data);
+        return Integer.BYTES + count * WAYPOINT_BYTES;
     }
 
     /**
-     * Get byte buffer representation of the command
+     * Length of a command frame (code and data)
      *
-     * @return byte buffer representation of the command
+     * @param b      Buffer holding the frame
+     * @param offset Absolute index of the code byte of the frame
+     * @return Length of the encoded command, or -1 if the buffer ends before the length can be determined
+     * @throws IllegalArgumentException If the code is unknown
      */
-    public ByteBuffer toByteBuffer() {
-        ByteBuffer b = ByteBuffer.allocate(1 + data.length);
+    static int frameLength(ByteBuffer b, int offset) {
+        if (b.limit() < offset + 1) return -1;
+
+        int dataLength = dataLength(b, offset);
+        return dataLength == -1 ? -1 : HEADER_BYTES + dataLength;
+    }
+
+    /**
+     * @return Length of the command when encoded, including the code and the tag if there is one
+     */
+    public int getFrameLength() {
+        return (id != 0 ? TAG_BYTES : 0) + HEADER_BYTES + data.length;
+    }
+
+    /**
+     * Encodes the command into a caller supplied buffer at its current position
+     *
+     * @param b Buffer to write to. Must have at least getFrameLength() bytes remaining.
+     * @return The same buffer
+     */
+    public ByteBuffer writeTo(ByteBuffer b) {
+        if (id != 0) {
+            b.put(TAG_CODE);
+            b.putInt(id);
+        }
 
         b.put(type.getCode());
         b.put(data);
-        b.flip();
 
         return b;
     }
 
+    /**
+     * Get byte buffer representation of the command
+     *
+     * @return byte buffer representation of the command
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(toArray());
+    }
+
     /**
      * Get byte array representation of the command
      *
      * @return byte array representation of the command
      */
     public byte[] toArray() {
-        return toByteBuffer().array();
+        byte[] arr = new byte[getFrameLength()];
+        int start = 0;
+
+        if (id != 0) {
+            arr[0] = TAG_CODE;
+            Bytes.putInt(arr, 1, id);
+            start = TAG_BYTES;
+        }
+
+        arr[start] = type.getCode();
+        System.arraycopy(data, 0, arr, start + HEADER_BYTES, data.length);
+
+        return arr;
     }
 
     @Override
@@ -105,6 +241,7 @@ public class AntennaCommand {
         return "AntennaCommand{" +
                 "type=" + type +
                 ", data=" + bytesToHex(data) +
+                (id != 0 ? ", id=" + id : "") +
                 '}';
     }
 
@@ -115,25 +252,42 @@ public class AntennaCommand {
     public enum Type {
         /* COMMANDS */
         G0(0x01, 8),
+        TRAJECTORY(0x02, AntennaCommand::trajectoryLength),
         T0(0x03, 1),
         A0(0x05, 1),
         POWERON(0x08, 0),
         POWEROFF(0x09, 0);
 
-        private static final Map<Byte, AntennaCommand.Type> codeToTypeMap = new HashMap<>();
+        /**
+         * Registry every command decoder resolves codes and lengths through
+         */
+        public static final CodecRegistry<AntennaCommand.Type> CODEC = new CodecRegistry<>(HEADER_BYTES);
 
         static {
             for (AntennaCommand.Type type : AntennaCommand.Type.values()) {
-                codeToTypeMap.put(type.code, type);
+                CODEC.register(type.code, type, type.lengthResolver);
             }
         }
 
-        private byte code;
-        private int length;
+        private final byte code;
+        private final int length;
+        private final CodecRegistry.LengthResolver lengthResolver;
 
         Type(int code, int length) {
             this.code = (byte) code;
             this.length = length;
+            this.lengthResolver = length == -1
+                    ? AntennaCommand::nestedCommandLength
+                    : CodecRegistry.fixed(length);
+        }
+
+        /**
+         * Variable length type whose data length is found from the frame itself
+         */
+        Type(int code, CodecRegistry.LengthResolver lengthResolver) {
+            this.code = (byte) code;
+            this.length = -1;
+            this.lengthResolver = lengthResolver;
         }
 
         /**
@@ -143,13 +297,16 @@ public class AntennaCommand {
          * @return Type code corresponds to
          */
         public static AntennaCommand.Type fromCode(byte code) {
-            return codeToTypeMap.get(code);
+            return CODEC.lookup(code);
         }
 
         public byte getCode() {
             return code;
         }
 
+        /**
+         * @return Length of the data in bytes, or -1 if variable
+         */
         public int getLength() {
             return length;
         }
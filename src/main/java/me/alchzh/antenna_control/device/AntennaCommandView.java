@@ -0,0 +1,136 @@
+package me.alchzh.antenna_control.device;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable flyweight over an encoded command frame in a (possibly direct) ByteBuffer
+ * Reads the type and data fields in place with absolute gets, so decoding allocates nothing and never moves the
+ * position of the underlying buffer. The view is only valid until the buffer is modified.
+ */
+public class AntennaCommandView {
+    private ByteBuffer buffer;
+    /**
+     * Absolute index of the code byte of the plain frame (after the tag, if any)
+     */
+    private int offset;
+    private int tagBytes;
+    private int id;
+    private AntennaCommand.Type type;
+    private int dataLength;
+
+    /**
+     * Points the view at the frame starting at offset
+     *
+     * @param buffer Buffer holding the frame
+     * @param offset Absolute index of the code byte of the frame, or of its tag
+     * @return This view
+     * @throws IllegalArgumentException If the frame has an unknown code
+     */
+    public AntennaCommandView wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.id = 0;
+        this.tagBytes = 0;
+
+        if (buffer.get(offset) == AntennaCommand.TAG_CODE) {
+            this.tagBytes = AntennaCommand.TAG_BYTES;
+
+            // Tag but not the code of the plain frame yet
+            if (buffer.limit() - offset <= AntennaCommand.TAG_BYTES) {
+                this.offset = offset + tagBytes;
+                this.type = null;
+                this.dataLength = -1;
+                return this;
+            }
+
+            this.id = buffer.getInt(offset + 1);
+            offset += tagBytes;
+        }
+
+        this.offset = offset;
+        this.type = AntennaCommand.Type.fromCode(buffer.get(offset));
+        this.dataLength = AntennaCommand.dataLength(buffer, offset);
+
+        return this;
+    }
+
+    /**
+     * @return true if the whole frame lies before the limit of the buffer
+     */
+    public boolean isComplete() {
+        return dataLength != -1 && buffer.limit() - (offset - tagBytes) >= getFrameLength();
+    }
+
+    public AntennaCommand.Type getType() {
+        return type;
+    }
+
+    /**
+     * @return Correlation id from the tag, or 0 for an untagged frame
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return Length of the data, or -1 if the buffer doesn't reach far enough to tell
+     */
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * @return Length of the whole frame including the tag (if any) and the code
+     */
+    public int getFrameLength() {
+        return tagBytes + AntennaCommand.HEADER_BYTES + dataLength;
+    }
+
+    /**
+     * @return Absolute index of the first data byte in the buffer
+     */
+    public int getDataOffset() {
+        return offset + AntennaCommand.HEADER_BYTES;
+    }
+
+    /**
+     * @param index Byte index into the data
+     * @return The byte at that index
+     */
+    public byte getByte(int index) {
+        return buffer.get(getDataOffset() + index);
+    }
+
+    /**
+     * @param index Byte index into the data
+     * @return The integer starting at that index
+     */
+    public int getInt(int index) {
+        return buffer.getInt(getDataOffset() + index);
+    }
+
+    /**
+     * Copies the data into a caller supplied array
+     *
+     * @param dst       Destination array
+     * @param dstOffset Index in dst to start writing at
+     */
+    public void copyData(byte[] dst, int dstOffset) {
+        int base = getDataOffset();
+
+        for (int i = 0; i < dataLength; i++) {
+            dst[dstOffset + i] = buffer.get(base + i);
+        }
+    }
+
+    /**
+     * Materializes the frame as an AntennaCommand (copies the data)
+     *
+     * @return A new command holding the same contents
+     */
+    public AntennaCommand toCommand() {
+        byte[] data = new byte[dataLength];
+        copyData(data, 0);
+
+        return new AntennaCommand(type, data, id);
+    }
+}
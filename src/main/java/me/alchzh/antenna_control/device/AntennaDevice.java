@@ -1,5 +1,8 @@
 package me.alchzh.antenna_control.device;
 
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Interface representing an AntennaDevice
  * Essentially functions as a two way event bus with listeners
@@ -12,6 +15,14 @@ public interface AntennaDevice extends EventEmitter<AntennaEvent> {
      */
     void submitCommand(AntennaCommand command);
 
+    /**
+     * Registers an event listener that only receives events of the given types
+     *
+     * @param types    Types to receive
+     * @param listener The listener
+     */
+    void addEventListener(Set<AntennaEvent.Type> types, Listener<AntennaEvent> listener);
+
     /**
      * Submits a command to the device
      *
@@ -31,4 +42,39 @@ public interface AntennaDevice extends EventEmitter<AntennaEvent> {
     default void submitCommand(AntennaCommand.Type type, int... data) {
         submitCommand(new AntennaCommand(type, data));
     }
+
+    /**
+     * Submits a command to the device without waiting for it to take effect
+     * The future completes with the event that finishes the command: BASE_TIME for POWERON, MOVE_FINISHED or
+     * MOVE_CANCELED for G0 and the COMMAND_ISSUED echo for anything else. It completes exceptionally if the device
+     * is off, doesn't know the command or rejects it.
+     *
+     * @param command Command to submit
+     * @return Future completed with the response event
+     */
+    default CompletableFuture<AntennaEvent> submitCommandAsync(AntennaCommand command) {
+        return new PendingCommand(this, command).submit();
+    }
+
+    /**
+     * Submits a command to the device without waiting for it to take effect
+     *
+     * @param type Command type
+     * @param data Command data / arguments
+     * @return Future completed with the response event
+     */
+    default CompletableFuture<AntennaEvent> submitCommandAsync(AntennaCommand.Type type, byte... data) {
+        return submitCommandAsync(new AntennaCommand(type, data));
+    }
+
+    /**
+     * Submits a command to the device without waiting for it to take effect
+     *
+     * @param type Command type
+     * @param data Command data / arguments
+     * @return Future completed with the response event
+     */
+    default CompletableFuture<AntennaEvent> submitCommandAsync(AntennaCommand.Type type, int... data) {
+        return submitCommandAsync(new AntennaCommand(type, data));
+    }
 }
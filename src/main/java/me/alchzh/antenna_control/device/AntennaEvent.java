@@ -1,19 +1,44 @@
 package me.alchzh.antenna_control.device;
 
+import me.alchzh.antenna_control.util.Bytes;
+
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.FloatBuffer;
 
 import static me.alchzh.antenna_control.util.Hex.bytesToHex;
 
 /**
  * Represents a events sent from a device to a listener (or passed from a device to another device)
  * Events must have a timeStamp in milliseconds from a baseTime (or epoch)
+ * <p>
+ * An event that responds to a tagged command (see AntennaCommand) carries the command's correlation id and is sent
+ * as TAG_CODE, the id and then the plain frame.
  */
 public class AntennaEvent {
+    /**
+     * Length of the code and time that precede the data in every event frame
+     */
+    public static final int HEADER_BYTES = 1 + Integer.BYTES;
+    /**
+     * Code of the prefix that tags an event with the correlation id of a command
+     */
+    public static final byte TAG_CODE = 0x5F;
+    /**
+     * Length of the tag prefix (code and id)
+     */
+    public static final int TAG_BYTES = 1 + Integer.BYTES;
+    /**
+     * Most values a single measurement event may carry
+     */
+    public static final int MAX_MEASUREMENT_VALUES = 1 << 16;
+
     public final Type type;
     public final int time;
     public final byte[] data;
+    /**
+     * Correlation id of the command this event responds to, or 0 for none
+     */
+    public final int id;
 
     /**
      * Basic event creation from type, time, and array of bytes
@@ -23,11 +48,24 @@ public class AntennaEvent {
      * @param data Byte array data / body / arguments
      */
     public AntennaEvent(Type type, int time, byte[] data) {
+        this(type, time, data, 0);
+    }
+
+    /**
+     * Tagged event creation from type, time, and array of bytes
+     *
+     * @param type The type of the event
+     * @param time The time of the event (from baseTime)
+     * @param data Byte array data / body / arguments
+     * @param id   Correlation id of the command this event responds to, or 0 for none
+     */
+    public AntennaEvent(Type type, int time, byte[] data, int id) {
         this.type = type;
         this.time = time;
 
         assert type.getLength() == -1 || type.getLength() == data.length;
         this.data = data;
+        this.id = id;
     }
 
     /**
@@ -43,73 +81,234 @@ public class AntennaEvent {
 
         assert type.getLength() == data.length * Integer.BYTES;
 
-        ByteBuffer d = ByteBuffer.allocate(type.getLength());
-        for (int arg : data) {
-            d.putInt(arg);
+        this.data = new byte[data.length * Integer.BYTES];
+        for (int i = 0; i < data.length; i++) {
+            Bytes.putInt(this.data, i * Integer.BYTES, data[i]);
         }
 
-        this.data = d.array();
+        this.id = 0;
+    }
+
+    /**
+     * @param id Correlation id, or 0 for none
+     * @return The same event carrying the id (shares the data)
+     */
+    public AntennaEvent withId(int id) {
+        return id == this.id ? this : new AntennaEvent(type, time, data, id);
     }
 
     /**
-     * Reads the event from a buffer starting with the code. Reads only as far as specified by the command
+     * Creates a MEASUREMENT event from the first count values of an array
+     * The array is copied, so a producer can refill the same array for every measurement.
+     *
+     * @param time   The time of the event (from baseTime)
+     * @param values Measured values
+     * @param count  Number of values to use
+     * @return The event
+     */
+    public static AntennaEvent measurement(int time, float[] values, int count) {
+        assert count <= MAX_MEASUREMENT_VALUES;
+        byte[] data = new byte[Integer.BYTES + count * Float.BYTES];
+
+        Bytes.putInt(data, 0, count);
+        // Bulk copy, a multi-thousand channel measurement shouldn't be encoded one value at a time
+        ByteBuffer.wrap(data, Integer.BYTES, count * Float.BYTES).slice().asFloatBuffer().put(values, 0, count);
+
+        return new AntennaEvent(Type.MEASUREMENT, time, data);
+    }
+
+    /**
+     * Creates a MEASUREMENT_INT16 event from the first count values of an array
+     * Each value is stored as the nearest multiple of scale that fits in a short, at half the size of MEASUREMENT.
+     *
+     * @param time   The time of the event (from baseTime)
+     * @param values Measured values
+     * @param count  Number of values to use
+     * @param scale  Value of one step of the stored shorts
+     * @return The event
+     */
+    public static AntennaEvent measurementInt16(int time, float[] values, int count, float scale) {
+        assert count <= MAX_MEASUREMENT_VALUES;
+        byte[] data = new byte[Integer.BYTES + Float.BYTES + count * Short.BYTES];
+
+        Bytes.putInt(data, 0, count);
+        Bytes.putFloat(data, Integer.BYTES, scale);
+
+        float inverse = 1 / scale;
+        int index = Integer.BYTES + Float.BYTES;
+        for (int i = 0; i < count; i++) {
+            int step = Math.round(values[i] * inverse);
+            step = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, step));
+
+            data[index++] = (byte) (step >>> 8);
+            data[index++] = (byte) step;
+        }
+
+        return new AntennaEvent(Type.MEASUREMENT_INT16, time, data);
+    }
+
+    /**
+     * Reads the event from a buffer starting with the code. Reads only as far as specified by the event
      *
      * @param b Buffer
      * @return The first event found in the byte buffer
      */
     public static AntennaEvent readFromBuffer(ByteBuffer b) {
-        byte code = b.get();
-        int time = b.getInt();
-
-        Type type = Type.fromCode(code);
-        int length = type.getLength();
-        byte[] data;
-
-        switch (type) {
-            case COMMAND_ISSUED:
-                byte code2 = b.get();
-                b.rewind();
-                int code2length = Type.fromCode(code2).getLength();
-                data = new byte[1 + code2length];
-                b.get(data);
-                break;
-            case MEASUREMENT:
-                int count = b.getInt();
-                b.rewind();
-                data = new byte[Integer.BYTES + Float.BYTES * count];
-                b.get(data);
-                break;
-            default:
-                data = new byte[length];
-                b.get(data);
+        AntennaEventView view = new AntennaEventView().wrap(b, b.position());
+        b.position(b.position() + view.getFrameLength());
+
+        return view.toEvent();
+    }
+
+    /**
+     * Finds the length of the data of an event frame without consuming anything from the buffer
+     *
+     * @param b      Buffer holding the frame
+     * @param offset Absolute index of the code byte of the frame
+     * @return Length of the data in bytes, or -1 if the buffer ends before the length can be determined
+     * @throws IllegalArgumentException If the frame has an unknown code
+     */
+    public static int dataLength(ByteBuffer b, int offset) {
+        return Type.CODEC.dataLength(b, offset);
+    }
+
+    /**
+     * COMMAND_ISSUED data is the encoded command that was issued
+     */
+    private static int issuedCommandLength(ByteBuffer b, int dataOffset) {
+        return AntennaCommand.frameLength(b, dataOffset);
+    }
+
+    /**
+     * MEASUREMENT data is a count followed by that many floats
+     */
+    private static int measurementLength(ByteBuffer b, int dataOffset) {
+        if (b.limit() < dataOffset + Integer.BYTES) return -1;
+
+        int count = b.getInt(dataOffset);
+        if (count < 0 || count > MAX_MEASUREMENT_VALUES) {
+            throw new IllegalArgumentException("Bad measurement count " + count);
+        }
+
+        return Integer.BYTES + count * Float.BYTES;
+    }
+
+    /**
+     * MEASUREMENT_INT16 data is a count, the scale and that many shorts
+     */
+    private static int measurementInt16Length(ByteBuffer b, int dataOffset) {
+        if (b.limit() < dataOffset + Integer.BYTES) return -1;
+
+        int count = b.getInt(dataOffset);
+        if (count < 0 || count > MAX_MEASUREMENT_VALUES) {
+            throw new IllegalArgumentException("Bad measurement count " + count);
         }
 
-        return new AntennaEvent(type, time, data);
+        return Integer.BYTES + Float.BYTES + count * Short.BYTES;
     }
 
     /**
-     * Get byte buffer representation of the command
+     * @return Number of values in a MEASUREMENT or MEASUREMENT_INT16 event
+     */
+    public int getMeasurementCount() {
+        assert type == Type.MEASUREMENT || type == Type.MEASUREMENT_INT16;
+
+        return Bytes.getInt(data, 0);
+    }
+
+    /**
+     * Read only view of the values of a MEASUREMENT event. Nothing is copied or decoded up front.
+     * MEASUREMENT_INT16 values have to be decoded, so read those (or either type) with getMeasurements(float[]).
      *
-     * @return byte buffer representation of the command
+     * @return Float view positioned at the first value
      */
-    public ByteBuffer toByteBuffer() {
-        ByteBuffer b = ByteBuffer.allocate(5 + data.length);
+    public FloatBuffer getMeasurements() {
+        assert type == Type.MEASUREMENT;
+
+        return ByteBuffer.wrap(data, Integer.BYTES, data.length - Integer.BYTES)
+                .slice()
+                .asFloatBuffer()
+                .asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies the values of a MEASUREMENT or MEASUREMENT_INT16 event into a caller supplied array
+     *
+     * @param dst Destination array. Must hold at least getMeasurementCount() values.
+     * @return Number of values copied
+     */
+    public int getMeasurements(float[] dst) {
+        int count = getMeasurementCount();
+
+        if (type == Type.MEASUREMENT_INT16) {
+            float scale = Bytes.getFloat(data, Integer.BYTES);
+            int index = Integer.BYTES + Float.BYTES;
+
+            for (int i = 0; i < count; i++, index += Short.BYTES) {
+                dst[i] = (short) ((data[index] << 8) | (data[index + 1] & 0xFF)) * scale;
+            }
+        } else {
+            ByteBuffer.wrap(data, Integer.BYTES, count * Float.BYTES).slice().asFloatBuffer().get(dst, 0, count);
+        }
+
+        return count;
+    }
+
+    /**
+     * @return Length of the event when encoded, including the code, time and the tag if there is one
+     */
+    public int getFrameLength() {
+        return (id != 0 ? TAG_BYTES : 0) + HEADER_BYTES + data.length;
+    }
+
+    /**
+     * Encodes the event into a caller supplied buffer at its current position
+     *
+     * @param b Buffer to write to. Must have at least getFrameLength() bytes remaining.
+     * @return The same buffer
+     */
+    public ByteBuffer writeTo(ByteBuffer b) {
+        if (id != 0) {
+            b.put(TAG_CODE);
+            b.putInt(id);
+        }
 
         b.put(type.getCode());
         b.putInt(time);
         b.put(data);
-        b.flip();
 
         return b;
     }
 
     /**
-     * Get byte array representation of the command
+     * Get byte buffer representation of the event
+     *
+     * @return byte buffer representation of the event
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(toArray());
+    }
+
+    /**
+     * Get byte array representation of the event
      *
-     * @return byte array representation of the command
+     * @return byte array representation of the event
      */
     public byte[] toArray() {
-        return toByteBuffer().array();
+        byte[] arr = new byte[getFrameLength()];
+        int start = 0;
+
+        if (id != 0) {
+            arr[0] = TAG_CODE;
+            Bytes.putInt(arr, 1, id);
+            start = TAG_BYTES;
+        }
+
+        arr[start] = type.getCode();
+        Bytes.putInt(arr, start + 1, time);
+        System.arraycopy(data, 0, arr, start + HEADER_BYTES, data.length);
+
+        return arr;
     }
 
     @Override
@@ -118,6 +317,7 @@ public class AntennaEvent {
                 "type=" + type +
                 ", time=" + time + "ms" +
                 ", data=" + bytesToHex(data) +
+                (id != 0 ? ", id=" + id : "") +
                 '}';
     }
 
@@ -140,32 +340,49 @@ public class AntennaEvent {
         BASE_TIME(0x44, Long.BYTES),
 
         /* RESPONSE EVENTS */
-        COMMAND_ISSUED(0x50, -1),
+        COMMAND_ISSUED(0x50, AntennaEvent::issuedCommandLength),
         CURRENT_STATE(0x51, 4 * Integer.BYTES),
         MOVE_FINISHED(0x52, 2 * Integer.BYTES),
         MOVE_CANCELED(0x53, 4 * Integer.BYTES),
-        MEASUREMENT(0x60, -1),
+        WAYPOINT_REACHED(0x54, 3 * Integer.BYTES),
+        MEASUREMENT(0x60, AntennaEvent::measurementLength),
+        MEASUREMENT_INT16(0x61, AntennaEvent::measurementInt16Length),
 
         /* ERROR EVENTS */
         PHYSICAL_POSITION_ERROR(0x70, 0),
         DATA_ACQUISITION_ERROR(0x71, 0),
         UNKNOWN_COMMAND_ERROR(0x72, 1),
+        TRAJECTORY_OVERFLOW_ERROR(0x73, 0),
         DEVICE_POWEROFF_ERROR(0x79, 0);
 
-        private static final Map<Byte, Type> codeToTypeMap = new HashMap<>();
+        /**
+         * Registry every event decoder resolves codes and lengths through
+         */
+        public static final CodecRegistry<Type> CODEC = new CodecRegistry<>(HEADER_BYTES);
 
         static {
             for (Type type : Type.values()) {
-                codeToTypeMap.put(type.code, type);
+                CODEC.register(type.code, type, type.lengthResolver);
             }
         }
 
-        private byte code;
-        private int length;
+        private final byte code;
+        private final int length;
+        private final CodecRegistry.LengthResolver lengthResolver;
 
         Type(int code, int length) {
             this.code = (byte) code;
             this.length = length;
+            this.lengthResolver = CodecRegistry.fixed(length);
+        }
+
+        /**
+         * Variable length type whose data length is found from the frame itself
+         */
+        Type(int code, CodecRegistry.LengthResolver lengthResolver) {
+            this.code = (byte) code;
+            this.length = -1;
+            this.lengthResolver = lengthResolver;
         }
 
         /**
@@ -175,13 +392,16 @@ public class AntennaEvent {
          * @return Type code corresponds to
          */
         public static AntennaEvent.Type fromCode(byte code) {
-            return codeToTypeMap.get(code);
+            return CODEC.lookup(code);
         }
 
         public byte getCode() {
             return code;
         }
 
+        /**
+         * @return Length of the data in bytes, or -1 if variable
+         */
         public int getLength() {
             return length;
         }
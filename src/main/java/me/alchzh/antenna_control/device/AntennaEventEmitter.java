@@ -0,0 +1,37 @@
+package me.alchzh.antenna_control.device;
+
+import java.util.Set;
+
+/**
+ * EventEmitterImpl for AntennaEvents that keys its dispatch table by event type, so listeners can subscribe to
+ * only the types they handle
+ */
+public abstract class AntennaEventEmitter extends EventEmitterImpl<AntennaEvent> {
+    private static final int TYPE_COUNT = AntennaEvent.Type.values().length;
+
+    @Override
+    protected int keyOf(AntennaEvent event) {
+        return event.type.ordinal();
+    }
+
+    @Override
+    protected int keyCount() {
+        return TYPE_COUNT;
+    }
+
+    /**
+     * Registers an event listener that only receives events of the given types.
+     * Registering a listener again replaces its types.
+     *
+     * @param types    Types to receive
+     * @param listener The listener
+     */
+    public void addEventListener(Set<AntennaEvent.Type> types, Listener<AntennaEvent> listener) {
+        long mask = 0;
+        for (AntennaEvent.Type type : types) {
+            mask |= 1L << type.ordinal();
+        }
+
+        addEventListener(listener, mask);
+    }
+}
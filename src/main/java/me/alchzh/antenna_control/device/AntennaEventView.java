@@ -0,0 +1,188 @@
+package me.alchzh.antenna_control.device;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable flyweight over an encoded event frame in a (possibly direct) ByteBuffer
+ * Reads the type, time and data fields in place with absolute gets, so decoding allocates nothing and never
+ * moves the position of the underlying buffer. The view is only valid until the buffer is modified.
+ */
+public class AntennaEventView {
+    private ByteBuffer buffer;
+    /**
+     * Absolute index of the code byte of the plain frame (after the tag, if any)
+     */
+    private int offset;
+    private int tagBytes;
+    private int id;
+    private AntennaEvent.Type type;
+    private int dataLength;
+
+    /**
+     * Points the view at the frame starting at offset
+     *
+     * @param buffer Buffer holding the frame
+     * @param offset Absolute index of the code byte of the frame, or of its tag
+     * @return This view
+     * @throws IllegalArgumentException If the frame has an unknown code
+     */
+    public AntennaEventView wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.id = 0;
+        this.tagBytes = 0;
+
+        if (buffer.get(offset) == AntennaEvent.TAG_CODE) {
+            this.tagBytes = AntennaEvent.TAG_BYTES;
+
+            // Tag but not the code of the plain frame yet
+            if (buffer.limit() - offset <= AntennaEvent.TAG_BYTES) {
+                this.offset = offset + tagBytes;
+                this.type = null;
+                this.dataLength = -1;
+                return this;
+            }
+
+            this.id = buffer.getInt(offset + 1);
+            offset += tagBytes;
+        }
+
+        this.offset = offset;
+        this.type = AntennaEvent.Type.fromCode(buffer.get(offset));
+        this.dataLength = AntennaEvent.dataLength(buffer, offset);
+
+        return this;
+    }
+
+    /**
+     * @return true if the whole frame lies before the limit of the buffer
+     */
+    public boolean isComplete() {
+        return dataLength != -1 && buffer.limit() - (offset - tagBytes) >= getFrameLength();
+    }
+
+    public AntennaEvent.Type getType() {
+        return type;
+    }
+
+    public int getTime() {
+        return buffer.getInt(offset + 1);
+    }
+
+    /**
+     * @return Correlation id from the tag, or 0 for an untagged frame
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return Length of the data, or -1 if the buffer doesn't reach far enough to tell
+     */
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * @return Length of the whole frame including the tag (if any), code and time
+     */
+    public int getFrameLength() {
+        return tagBytes + AntennaEvent.HEADER_BYTES + dataLength;
+    }
+
+    /**
+     * @return Absolute index of the first data byte in the buffer
+     */
+    public int getDataOffset() {
+        return offset + AntennaEvent.HEADER_BYTES;
+    }
+
+    /**
+     * @param index Byte index into the data
+     * @return The byte at that index
+     */
+    public byte getByte(int index) {
+        return buffer.get(getDataOffset() + index);
+    }
+
+    /**
+     * @param index Byte index into the data
+     * @return The integer starting at that index
+     */
+    public int getInt(int index) {
+        return buffer.getInt(getDataOffset() + index);
+    }
+
+    /**
+     * @param index Byte index into the data
+     * @return The long starting at that index
+     */
+    public long getLong(int index) {
+        return buffer.getLong(getDataOffset() + index);
+    }
+
+    /**
+     * @param index Byte index into the data
+     * @return The float starting at that index
+     */
+    public float getFloat(int index) {
+        return buffer.getFloat(getDataOffset() + index);
+    }
+
+    /**
+     * @return Number of values in a MEASUREMENT or MEASUREMENT_INT16 frame
+     */
+    public int getMeasurementCount() {
+        return getInt(0);
+    }
+
+    /**
+     * Copies the values of a MEASUREMENT or MEASUREMENT_INT16 frame into a caller supplied array
+     *
+     * @param dst Destination array. Must hold at least getMeasurementCount() values.
+     * @return Number of values copied
+     */
+    public int getMeasurements(float[] dst) {
+        int count = getMeasurementCount();
+
+        if (type == AntennaEvent.Type.MEASUREMENT_INT16) {
+            float scale = getFloat(Integer.BYTES);
+            int index = getDataOffset() + Integer.BYTES + Float.BYTES;
+
+            for (int i = 0; i < count; i++, index += Short.BYTES) {
+                dst[i] = buffer.getShort(index) * scale;
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                dst[i] = getFloat(Integer.BYTES + i * Float.BYTES);
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Copies the data into a caller supplied array
+     *
+     * @param dst       Destination array
+     * @param dstOffset Index in dst to start writing at
+     */
+    public void copyData(byte[] dst, int dstOffset) {
+        int base = getDataOffset();
+
+        for (int i = 0; i < dataLength; i++) {
+            dst[dstOffset + i] = buffer.get(base + i);
+        }
+    }
+
+    /**
+     * Materializes the frame as an AntennaEvent (copies the data)
+     *
+     * @return A new event holding the same contents
+     */
+    public AntennaEvent toEvent() {
+        byte[] data = new byte[dataLength];
+        copyData(data, 0);
+
+        return new AntennaEvent(type, getTime(), data, id);
+    }
+}
@@ -0,0 +1,114 @@
+package me.alchzh.antenna_control.device;
+
+import me.alchzh.antenna_control.util.Hex;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Maps protocol code bytes to their types and data length resolvers with a flat 256 entry table
+ * Every decoder (buffers, views, network streams) resolves frame lengths through the registry, so a new type only
+ * has to be registered once.
+ * <p>
+ * Lookups read the table without locking. Registering copies the table and publishes the copy, so a decoder always
+ * sees a type together with its own resolver, even while types are registered at runtime.
+ *
+ * @param <T> The type enum the codes map to
+ */
+public final class CodecRegistry<T> {
+    private final int headerBytes;
+    private volatile Entry[] entries = new Entry[256];
+
+    /**
+     * @param headerBytes Length of everything before the data in a frame (code and, for events, the time)
+     */
+    public CodecRegistry(int headerBytes) {
+        this.headerBytes = headerBytes;
+    }
+
+    /**
+     * A resolver that always returns the same length
+     *
+     * @param length Length of the data in bytes
+     * @return The resolver
+     */
+    public static LengthResolver fixed(int length) {
+        return (b, dataOffset) -> length;
+    }
+
+    /**
+     * Registers (or replaces) a type and how to find the length of its data
+     *
+     * @param code     Code byte of the type
+     * @param type     The type
+     * @param resolver Resolves the data length of frames with this code
+     */
+    public synchronized void register(byte code, T type, LengthResolver resolver) {
+        Entry[] copy = entries.clone();
+        copy[code & 0xFF] = new Entry(type, resolver);
+        entries = copy;
+    }
+
+    /**
+     * Looks up the type registered for a code
+     *
+     * @param code Code byte to look up
+     * @return Type the code corresponds to, or null if unknown
+     */
+    @SuppressWarnings("unchecked")
+    public T lookup(byte code) {
+        Entry entry = entries[code & 0xFF];
+        return entry == null ? null : (T) entry.type;
+    }
+
+    /**
+     * Finds the length of the data of a frame without consuming anything from the buffer
+     *
+     * @param b      Buffer holding the frame
+     * @param offset Absolute index of the code byte of the frame
+     * @return Length of the data in bytes, or -1 if the buffer ends before the length can be determined
+     * @throws IllegalArgumentException If the frame has an unknown code
+     */
+    public int dataLength(ByteBuffer b, int offset) {
+        byte code = b.get(offset);
+        Entry entry = entries[code & 0xFF];
+
+        if (entry == null) {
+            throw new IllegalArgumentException("Unknown code " + Hex.byteToHex(code));
+        }
+
+        return entry.resolver.resolve(b, offset + headerBytes);
+    }
+
+    /**
+     * @return Length of everything before the data in a frame
+     */
+    public int getHeaderBytes() {
+        return headerBytes;
+    }
+
+    /**
+     * Determines the length of the data of a frame, possibly from its first few data bytes
+     */
+    @FunctionalInterface
+    public interface LengthResolver {
+        /**
+         * @param b          Buffer holding the frame. Must not be read past its limit.
+         * @param dataOffset Absolute index of the first data byte
+         * @return Length of the data in bytes, or -1 if more of the frame is needed to tell
+         */
+        int resolve(ByteBuffer b, int dataOffset);
+    }
+
+    /**
+     * A registered type and its resolver, replaced as a unit
+     */
+    private static final class Entry {
+        final Object type;
+        final LengthResolver resolver;
+
+        Entry(Object type, LengthResolver resolver) {
+            this.type = type;
+            this.resolver = resolver;
+        }
+    }
+}
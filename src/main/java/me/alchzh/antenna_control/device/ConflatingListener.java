@@ -0,0 +1,80 @@
+package me.alchzh.antenna_control.device;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Wraps a slow listener so it runs on an executor and only ever sees the newest pending event of the conflated types
+ * <p>
+ * Events of other types are queued and delivered in order. An event of a conflated type takes the place in the queue
+ * of the first one not yet delivered, and replaces its value, so a lagging consumer (e.g. a GUI showing the current
+ * position) never builds a backlog of stale states.
+ */
+public class ConflatingListener implements EventEmitter.Listener<AntennaEvent> {
+    private final EventEmitter.Listener<AntennaEvent> delegate;
+    private final Executor executor;
+    private final boolean[] conflated = new boolean[AntennaEvent.Type.values().length];
+
+    /**
+     * Events and markers (the Type of a pending conflated event) in delivery order
+     */
+    private final Queue<Object> mailbox = new ConcurrentLinkedQueue<>();
+    private final AtomicReferenceArray<AntennaEvent> latest =
+            new AtomicReferenceArray<>(AntennaEvent.Type.values().length);
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * @param delegate       Listener to deliver to
+     * @param executor       Executor the delegate runs on (e.g. SwingUtilities::invokeLater)
+     * @param conflatedTypes Types for which only the newest pending event is delivered
+     */
+    public ConflatingListener(EventEmitter.Listener<AntennaEvent> delegate, Executor executor,
+                              Set<AntennaEvent.Type> conflatedTypes) {
+        this.delegate = delegate;
+        this.executor = executor;
+
+        for (AntennaEvent.Type type : conflatedTypes) {
+            conflated[type.ordinal()] = true;
+        }
+    }
+
+    @Override
+    public void eventOccurred(AntennaEvent event) {
+        int ordinal = event.type.ordinal();
+
+        if (!conflated[ordinal]) {
+            mailbox.add(event);
+        } else if (latest.getAndSet(ordinal, event) == null) {
+            // Nothing of this type pending, reserve a place in the queue
+            mailbox.add(event.type);
+        }
+
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        do {
+            Object item;
+            while ((item = mailbox.poll()) != null) {
+                AntennaEvent event = item instanceof AntennaEvent.Type
+                        ? latest.getAndSet(((AntennaEvent.Type) item).ordinal(), null)
+                        : (AntennaEvent) item;
+
+                try {
+                    delegate.eventOccurred(event);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+
+            scheduled.set(false);
+            // Something may have arrived after the last poll but before the flag was cleared
+        } while (!mailbox.isEmpty() && scheduled.compareAndSet(false, true));
+    }
+}
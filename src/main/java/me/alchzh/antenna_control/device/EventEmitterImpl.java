@@ -1,14 +1,59 @@
 package me.alchzh.antenna_control.device;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.function.Predicate;
 
 /**
  * Thread safe event listener implementation of AntennaDevice
+ * Listeners are kept in an immutable array that is replaced on every add/remove, so sending an event takes no
+ * locks and allocates nothing. Listeners are called in the order they were added.
+ * <p>
+ * Subclasses that can classify their events into keys (see keyOf) also support filtered listeners. A filtered
+ * listener is only placed in the dispatch table entries of the keys it asked for, so sending an event only touches
+ * the listeners that care about it.
+ * <p>
+ * By default listeners run on the thread that sends the event. With async dispatch enabled, events are published to
+ * an EventRing instead and every listener consumes them on its own thread, so a slow listener can't hold up the
+ * sender.
  */
 public abstract class EventEmitterImpl<T> implements EventEmitter<T> {
+    /**
+     * Key mask of a listener that receives every event
+     */
+    protected static final long ALL_KEYS = -1L;
+
+    @SuppressWarnings("rawtypes")
+    private static final Listener[] NO_LISTENERS = new Listener[0];
+
     private final Object MONITOR = new Object();
-    private Set<Listener<T>> listeners;
+    @SuppressWarnings("unchecked")
+    private volatile Listener<T>[] listeners = NO_LISTENERS;
+    /**
+     * Key mask of each listener, parallel to listeners. Guarded by MONITOR.
+     */
+    private long[] keyMasks = new long[0];
+    /**
+     * Dispatch table. keyedListeners[key] holds the listeners that receive events with that key, in order.
+     */
+    private volatile Listener<T>[][] keyedListeners = newListenerTable(0);
+    private volatile EventRing<T> ring;
+
+    /**
+     * Classifies an event for filtered dispatch
+     *
+     * @param event The event
+     * @return Key from 0 to keyCount() - 1, or -1 to send the event to every listener
+     */
+    protected int keyOf(T event) {
+        return -1;
+    }
+
+    /**
+     * @return Number of distinct keys returned by keyOf (at most 64)
+     */
+    protected int keyCount() {
+        return 0;
+    }
 
     /**
      * Sends a regular (data) event to every registered listener
@@ -16,35 +61,181 @@ public abstract class EventEmitterImpl<T> implements EventEmitter<T> {
      * @param event Event to send
      */
     protected void sendEvent(T event) {
-        Set<Listener<T>> listenersCopy;
-
-        synchronized (MONITOR) {
-            if (listeners == null) return;
-            listenersCopy = new HashSet<>(listeners);
+        EventRing<T> ring = this.ring;
+        if (ring != null) {
+            ring.publish(event);
+            return;
         }
 
-        for (Listener<T> listener : listenersCopy) {
+        int key = keyOf(event);
+        Listener<T>[][] table = keyedListeners;
+        // The table is only built once the first listener is added
+        Listener<T>[] targets = key < 0 || key >= table.length ? listeners : table[key];
+
+        for (Listener<T> listener : targets) {
             listener.eventOccurred(event);
         }
     }
 
     @Override
     public void addEventListener(Listener<T> listener) {
+        addEventListener(listener, ALL_KEYS);
+    }
+
+    /**
+     * Registers an event listener that only receives events whose key is in the mask.
+     * Registering a listener again replaces its mask.
+     *
+     * @param listener The listener
+     * @param keyMask  Bit (1L &lt;&lt; key) set for every key to receive
+     */
+    protected void addEventListener(Listener<T> listener, long keyMask) {
         if (listener == null) return;
 
         synchronized (MONITOR) {
-            if (listeners == null) {
-                listeners = new HashSet<>(1);
+            Listener<T>[] current = listeners;
+            int index = indexOf(current, listener);
+
+            if (index != -1) {
+                keyMasks[index] = keyMask;
+            } else {
+                Listener<T>[] updated = Arrays.copyOf(current, current.length + 1);
+                updated[current.length] = listener;
+                keyMasks = Arrays.copyOf(keyMasks, current.length + 1);
+                keyMasks[current.length] = keyMask;
+                listeners = updated;
             }
 
-            listeners.add(listener);
+            rebuildDispatchTable();
+
+            if (ring != null) {
+                if (index != -1) ring.unsubscribe(listener);
+                ring.subscribe(listener, filterFor(keyMask));
+            }
         }
     }
 
     @Override
     public void removeEventListener(Listener<T> listener) {
         synchronized (MONITOR) {
-            if (listeners != null) listeners.remove(listener);
+            Listener<T>[] current = listeners;
+            int index = indexOf(current, listener);
+            if (index == -1) return;
+
+            Listener<T>[] updated = Arrays.copyOf(current, current.length - 1);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+
+            long[] updatedMasks = Arrays.copyOf(keyMasks, current.length - 1);
+            System.arraycopy(keyMasks, index + 1, updatedMasks, index, current.length - index - 1);
+            keyMasks = updatedMasks;
+
+            listeners = updated;
+            rebuildDispatchTable();
+
+            if (ring != null) ring.unsubscribe(listener);
         }
     }
+
+    /**
+     * Switches to asynchronous dispatch. Every current and future listener gets its own consumer thread reading
+     * from a shared ring of events, until it is removed. Only worth it for an emitter whose listeners are few and
+     * long-lived.
+     *
+     * @param capacity       Number of events the ring holds
+     * @param waitStrategy   How idle listener threads wait for events
+     * @param overflowPolicy What happens when a listener falls a whole ring behind
+     */
+    public void enableAsyncDispatch(int capacity, EventRing.WaitStrategy waitStrategy,
+                                    EventRing.OverflowPolicy overflowPolicy) {
+        synchronized (MONITOR) {
+            if (ring != null) {
+                throw new IllegalStateException("Async dispatch already enabled");
+            }
+
+            EventRing<T> newRing = new EventRing<>(capacity, waitStrategy, overflowPolicy);
+            Listener<T>[] current = listeners;
+            for (int i = 0; i < current.length; i++) {
+                newRing.subscribe(current[i], filterFor(keyMasks[i]));
+            }
+
+            ring = newRing;
+        }
+    }
+
+    /**
+     * Goes back to calling listeners on the sending thread. Events still in the ring are discarded.
+     */
+    public void disableAsyncDispatch() {
+        synchronized (MONITOR) {
+            if (ring == null) return;
+
+            ring.shutdown();
+            ring = null;
+        }
+    }
+
+    /**
+     * @return The ring used for async dispatch, or null if listeners are called synchronously
+     */
+    public EventRing<T> getEventRing() {
+        return ring;
+    }
+
+    /**
+     * Rebuilds keyedListeners from listeners and keyMasks. Called under MONITOR.
+     */
+    @SuppressWarnings("unchecked")
+    private void rebuildDispatchTable() {
+        Listener<T>[] current = listeners;
+        Listener<T>[][] table = newListenerTable(keyCount());
+
+        for (int key = 0; key < table.length; key++) {
+            int count = 0;
+            for (long mask : keyMasks) {
+                if ((mask & (1L << key)) != 0) count++;
+            }
+
+            table[key] = count == 0 ? NO_LISTENERS : newListeners(count);
+
+            int n = 0;
+            for (int i = 0; i < current.length; i++) {
+                if ((keyMasks[i] & (1L << key)) != 0) table[key][n++] = current[i];
+            }
+        }
+
+        keyedListeners = table;
+    }
+
+    /*
+     * Arrays of a generic type can't be created directly
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Listener<T>[] newListeners(int length) {
+        return (Listener<T>[]) new Listener<?>[length];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Listener<T>[][] newListenerTable(int length) {
+        return (Listener<T>[][]) new Listener<?>[length][];
+    }
+
+    /**
+     * @return Filter applied by an async consumer, or null for a listener that receives everything
+     */
+    private Predicate<T> filterFor(long keyMask) {
+        if (keyMask == ALL_KEYS) return null;
+
+        return event -> {
+            int key = keyOf(event);
+            return key < 0 || (keyMask & (1L << key)) != 0;
+        };
+    }
+
+    private static <T> int indexOf(Listener<T>[] array, Listener<T> listener) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].equals(listener)) return i;
+        }
+
+        return -1;
+    }
 }
@@ -0,0 +1,86 @@
+package me.alchzh.antenna_control.device;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reassembles event frames (code, time, data, newline) from a stream of bytes, such as a socket or a recording
+ * A partial frame stays buffered until the rest of it is read, and the buffer grows to fit any frame.
+ */
+public class EventFrameDecoder {
+    private ByteBuffer buffer;
+    private final AntennaEventView view = new AntennaEventView();
+
+    /**
+     * @param capacity Initial size of the buffer in bytes
+     */
+    public EventFrameDecoder(int capacity) {
+        buffer = ByteBuffer.allocate(capacity);
+        // Nothing read yet
+        buffer.flip();
+    }
+
+    /**
+     * Reads as much as is available from a channel after the bytes still buffered
+     *
+     * @param channel Channel to read from
+     * @return Number of bytes read, or -1 at the end of the stream
+     * @throws IOException On any IOException
+     */
+    public int fill(ReadableByteChannel channel) throws IOException {
+        buffer.compact();
+
+        try {
+            return channel.read(buffer);
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Decodes the next event frame from the buffer
+     *
+     * @return The event, or null if the buffer doesn't hold a complete frame yet
+     * @throws IOException If the frame starts with an unknown code or has a bad length
+     */
+    public AntennaEvent next() throws IOException {
+        if (buffer.remaining() < AntennaEvent.HEADER_BYTES) return null;
+
+        try {
+            view.wrap(buffer, buffer.position());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        if (view.getDataLength() == -1) return null;
+
+        // frame + newline
+        int frameLength = view.getFrameLength() + 1;
+
+        if (buffer.remaining() < frameLength) {
+            if (frameLength > buffer.capacity()) {
+                grow(frameLength);
+            }
+            return null;
+        }
+
+        AntennaEvent event = view.toEvent();
+        buffer.position(buffer.position() + frameLength);
+
+        return event;
+    }
+
+    /**
+     * Replaces the buffer with a larger one holding the same unread bytes, so a frame bigger than the buffer can
+     * still be assembled
+     *
+     * @param minCapacity Size of the frame that has to fit
+     */
+    private void grow(int minCapacity) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(minCapacity, buffer.capacity() * 2));
+        grown.put(buffer);
+        grown.flip();
+        buffer = grown;
+    }
+}
@@ -0,0 +1,322 @@
+package me.alchzh.antenna_control.device;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+/**
+ * A bounded, pre-allocated ring of events that every subscribed listener consumes on its own thread and at its own
+ * sequence. Publishing never waits for consumers: when the slowest consumer is a whole ring behind, the overflow
+ * policy decides who loses events.
+ * <p>
+ * Every subscriber costs a thread that lives until it unsubscribes, so the ring is meant for a few long-lived
+ * subscribers (a GUI, a recorder). Short-lived listeners, such as one waiting for a single response, belong on a
+ * synchronously dispatching emitter instead.
+ *
+ * @param <T> Event type
+ */
+public class EventRing<T> {
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<T> slots;
+    /**
+     * Sequence currently stored in each slot, or -1 while the slot is being (re)written
+     */
+    private final AtomicLongArray slotSequences;
+    /**
+     * Last published sequence
+     */
+    private final AtomicLong cursor = new AtomicLong(-1);
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final WaitStrategy waitStrategy;
+    private final OverflowPolicy overflowPolicy;
+
+    private final Object PUBLISH_MONITOR = new Object();
+    private final Object WAIT_MONITOR = new Object();
+    private volatile int blockedConsumers = 0;
+
+    private volatile Consumer[] consumers = newConsumers(0);
+
+    /**
+     * @param capacity       Number of slots. Rounded up to a power of two.
+     * @param waitStrategy   How idle consumers wait for new events
+     * @param overflowPolicy What happens when a consumer falls a whole ring behind
+     */
+    public EventRing(int capacity, WaitStrategy waitStrategy, OverflowPolicy overflowPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        this.capacity = size;
+        this.mask = this.capacity - 1;
+        this.slots = new AtomicReferenceArray<>(this.capacity);
+        this.slotSequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            slotSequences.set(i, -1);
+        }
+
+        this.waitStrategy = waitStrategy;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Publishes an event to every consumer. Never waits for consumers.
+     *
+     * @param event Event to publish
+     * @return false if the event was dropped under OverflowPolicy.DROP_NEWEST
+     */
+    public boolean publish(T event) {
+        synchronized (PUBLISH_MONITOR) {
+            long sequence = cursor.get() + 1;
+
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST && sequence - minConsumerSequence() >= capacity) {
+                dropped.incrementAndGet();
+                return false;
+            }
+
+            int index = (int) sequence & mask;
+            slotSequences.set(index, -1);
+            slots.set(index, event);
+            slotSequences.set(index, sequence);
+            cursor.set(sequence);
+        }
+
+        if (blockedConsumers > 0) {
+            synchronized (WAIT_MONITOR) {
+                WAIT_MONITOR.notifyAll();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Starts a consumer thread for a listener. It receives every event published from now on. The thread runs
+     * until the listener is unsubscribed or the ring shut down.
+     *
+     * @param listener Listener to run on the consumer thread
+     */
+    public void subscribe(EventEmitter.Listener<T> listener) {
+        subscribe(listener, null);
+    }
+
+    /**
+     * Starts a consumer thread for a listener that only receives events accepted by a filter.
+     * Rejected events are skipped on the consumer thread; the publisher never evaluates the filter.
+     *
+     * @param listener Listener to run on the consumer thread
+     * @param filter   Events to deliver, or null for every event
+     */
+    public synchronized void subscribe(EventEmitter.Listener<T> listener, Predicate<? super T> filter) {
+        Consumer consumer = new Consumer(listener, filter, cursor.get() + 1);
+
+        Consumer[] updated = Arrays.copyOf(consumers, consumers.length + 1);
+        updated[consumers.length] = consumer;
+        consumers = updated;
+
+        Thread thread = new Thread(consumer, "eventRing-consumer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the consumer thread of a listener
+     *
+     * @param listener Listener to stop
+     */
+    public synchronized void unsubscribe(EventEmitter.Listener<T> listener) {
+        for (int i = 0; i < consumers.length; i++) {
+            if (consumers[i].listener.equals(listener)) {
+                consumers[i].stop();
+
+                Consumer[] updated = Arrays.copyOf(consumers, consumers.length - 1);
+                System.arraycopy(consumers, i + 1, updated, i, consumers.length - i - 1);
+                consumers = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops every consumer thread
+     */
+    public synchronized void shutdown() {
+        for (Consumer consumer : consumers) {
+            consumer.stop();
+        }
+
+        consumers = newConsumers(0);
+    }
+
+    /**
+     * Consumer is an inner class of a generic class, so its arrays can't be created directly
+     */
+    @SuppressWarnings("unchecked")
+    private Consumer[] newConsumers(int length) {
+        return (Consumer[]) Array.newInstance(Consumer.class, length);
+    }
+
+    /**
+     * @return Number of events lost so far, either dropped on publish or overwritten before a consumer got to them
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private long minConsumerSequence() {
+        long min = cursor.get() + 1;
+
+        for (Consumer consumer : consumers) {
+            min = Math.min(min, consumer.next);
+        }
+
+        return min;
+    }
+
+    /**
+     * How a consumer with nothing to read waits for the next event
+     */
+    public enum WaitStrategy {
+        /**
+         * Spins on the cursor. Lowest latency, burns a core per consumer.
+         */
+        BUSY_SPIN,
+        /**
+         * Yields the thread between checks
+         */
+        YIELDING,
+        /**
+         * Parks for a short interval between checks
+         */
+        SLEEPING,
+        /**
+         * Waits on a monitor that publishers signal. Lowest CPU use.
+         */
+        BLOCKING
+    }
+
+    /**
+     * What happens when the slowest consumer is a whole ring behind the publisher
+     */
+    public enum OverflowPolicy {
+        /**
+         * Overwrite the oldest event. Lagging consumers skip ahead to the oldest event still in the ring.
+         */
+        DROP_OLDEST,
+        /**
+         * Discard the event being published for every consumer
+         */
+        DROP_NEWEST
+    }
+
+    /**
+     * Runs one listener on its own thread and sequence
+     */
+    private class Consumer implements Runnable {
+        private final EventEmitter.Listener<T> listener;
+        private final Predicate<? super T> filter;
+        /**
+         * Next sequence to read
+         */
+        private volatile long next;
+        private volatile boolean running = true;
+        private volatile Thread thread;
+
+        private Consumer(EventEmitter.Listener<T> listener, Predicate<? super T> filter, long next) {
+            this.listener = listener;
+            this.filter = filter;
+            this.next = next;
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+
+            while (running) {
+                long sequence = next;
+
+                if (sequence > cursor.get()) {
+                    waitFor(sequence);
+                    continue;
+                }
+
+                int index = (int) sequence & mask;
+                if (slotSequences.get(index) == sequence) {
+                    T event = slots.get(index);
+
+                    // Check the slot wasn't overwritten while we read it
+                    if (slotSequences.get(index) == sequence) {
+                        next = sequence + 1;
+
+                        if (filter != null && !filter.test(event)) continue;
+
+                        try {
+                            listener.eventOccurred(event);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                        continue;
+                    }
+                }
+
+                // Lapped by the publisher: skip to the oldest event still in the ring
+                long oldest = Math.max(sequence + 1, cursor.get() - capacity + 1);
+                dropped.addAndGet(oldest - sequence);
+                next = oldest;
+            }
+        }
+
+        private void waitFor(long sequence) {
+            switch (waitStrategy) {
+                case BUSY_SPIN:
+                    break;
+                case YIELDING:
+                    Thread.yield();
+                    break;
+                case SLEEPING:
+                    LockSupport.parkNanos(100_000);
+                    break;
+                case BLOCKING:
+                    synchronized (WAIT_MONITOR) {
+                        blockedConsumers++;
+                        try {
+                            while (running && sequence > cursor.get()) {
+                                WAIT_MONITOR.wait();
+                            }
+                        } catch (InterruptedException e) {
+                            running = false;
+                        } finally {
+                            blockedConsumers--;
+                        }
+                    }
+                    break;
+            }
+        }
+
+        private void stop() {
+            running = false;
+
+            synchronized (WAIT_MONITOR) {
+                WAIT_MONITOR.notifyAll();
+            }
+
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package me.alchzh.antenna_control.device;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A submitted command waiting for the event that completes it
+ * <ul>
+ *     <li>POWERON completes with BASE_TIME</li>
+ *     <li>G0 completes with the MOVE_FINISHED or MOVE_CANCELED of its own move</li>
+ *     <li>Every other command completes with its COMMAND_ISSUED echo</li>
+ * </ul>
+ * DEVICE_POWEROFF_ERROR, UNKNOWN_COMMAND_ERROR and TRAJECTORY_OVERFLOW_ERROR complete the command exceptionally.
+ * <p>
+ * Events of a tagged command are matched by correlation id. Untagged commands are matched by their COMMAND_ISSUED
+ * echo and the order of events, which is only exact as long as a single client issues commands.
+ */
+final class PendingCommand implements EventEmitter.Listener<AntennaEvent> {
+    private static final Set<AntennaEvent.Type> RESPONSE_TYPES = EnumSet.of(
+            AntennaEvent.Type.BASE_TIME,
+            AntennaEvent.Type.CURRENT_STATE,
+            AntennaEvent.Type.COMMAND_ISSUED,
+            AntennaEvent.Type.MOVE_FINISHED,
+            AntennaEvent.Type.MOVE_CANCELED,
+            AntennaEvent.Type.DEVICE_POWEROFF_ERROR,
+            AntennaEvent.Type.UNKNOWN_COMMAND_ERROR,
+            AntennaEvent.Type.TRAJECTORY_OVERFLOW_ERROR);
+
+    private final AntennaDevice device;
+    private final AntennaCommand command;
+    private final byte[] echo;
+    private final CompletableFuture<AntennaEvent> future = new CompletableFuture<>();
+    /**
+     * Set once our COMMAND_ISSUED echo is seen. Move events before it belong to an earlier move.
+     */
+    private volatile boolean issued = false;
+    /**
+     * Set once a later G0 is issued. Only that G0 can cancel our move; the MOVE_CANCELED sent right after our own
+     * echo is for the move we replaced.
+     */
+    private volatile boolean superseded = false;
+    /**
+     * Before our echo: whether the last CURRENT_STATE showed an earlier move still under way. After it: whether
+     * that move's MOVE_FINISHED or MOVE_CANCELED is still to come, so the next one isn't ours.
+     */
+    private volatile boolean priorMove = false;
+
+    PendingCommand(AntennaDevice device, AntennaCommand command) {
+        this.device = device;
+        this.command = command;
+        this.echo = command.withId(0).toArray();
+    }
+
+    CompletableFuture<AntennaEvent> submit() {
+        device.addEventListener(RESPONSE_TYPES, this);
+        future.whenComplete((event, e) -> device.removeEventListener(this));
+
+        device.submitCommand(command);
+
+        return future;
+    }
+
+    @Override
+    public void eventOccurred(AntennaEvent event) {
+        if (future.isDone()) return;
+
+        // A tagged command is answered by events carrying its id, so no guessing is needed
+        boolean tagged = command.id != 0;
+        if (tagged && event.id != command.id) return;
+
+        switch (event.type) {
+            case BASE_TIME:
+                if (command.type == AntennaCommand.Type.POWERON) future.complete(event);
+                break;
+            case CURRENT_STATE:
+                // (az, el, destAz, destEl)
+                if (!issued && event.data.length >= 16) {
+                    priorMove = !sameInt(event.data, 0, event.data, 8) || !sameInt(event.data, 4, event.data, 12);
+                }
+                break;
+            case COMMAND_ISSUED:
+                if (tagged || !issued && Arrays.equals(event.data, echo)) {
+                    issued = true;
+                    if (command.type != AntennaCommand.Type.G0 && command.type != AntennaCommand.Type.POWERON) {
+                        future.complete(event);
+                    }
+                } else if (issued && event.data.length > 0
+                        && event.data[0] == AntennaCommand.Type.G0.getCode()) {
+                    superseded = true;
+                }
+                break;
+            case MOVE_FINISHED:
+                if (!tagged && endsPriorMove()) break;
+
+                // (destAz, destEl). Azimuth may have been shifted for tracking, elevation never is.
+                if (command.type == AntennaCommand.Type.G0 && (tagged || issued && event.data.length >= 8
+                        && sameInt(event.data, 4, command.data, 4))) {
+                    future.complete(event);
+                }
+                break;
+            case MOVE_CANCELED:
+                if (!tagged && endsPriorMove()) break;
+
+                if (command.type == AntennaCommand.Type.G0 && (tagged || superseded)) future.complete(event);
+                break;
+            case DEVICE_POWEROFF_ERROR:
+                if (tagged || command.type != AntennaCommand.Type.POWERON) {
+                    future.completeExceptionally(new IllegalStateException("Device is powered off"));
+                }
+                break;
+            case UNKNOWN_COMMAND_ERROR:
+                if (tagged || event.data.length == 1 && event.data[0] == command.type.getCode()) {
+                    future.completeExceptionally(new UnsupportedOperationException(command.type.toString()));
+                }
+                break;
+            case TRAJECTORY_OVERFLOW_ERROR:
+                // Sent instead of the echo
+                if (command.type == AntennaCommand.Type.TRAJECTORY && (tagged || !issued)) {
+                    future.completeExceptionally(new IllegalStateException("Trajectory queue full"));
+                }
+                break;
+        }
+    }
+
+    /**
+     * Accounts for a move event of an untagged command. An earlier move that was still under way when we were
+     * issued ends with one MOVE_FINISHED or MOVE_CANCELED, which the device may send after our echo (in a
+     * constant elevation raster, a MOVE_FINISHED that looks like ours).
+     *
+     * @return true if the event ends that earlier move
+     */
+    private boolean endsPriorMove() {
+        if (!priorMove) return false;
+
+        // Before our echo it simply ended before we were issued
+        priorMove = false;
+        return issued;
+    }
+
+    private static boolean sameInt(byte[] a, int aIndex, byte[] b, int bIndex) {
+        for (int i = 0; i < Integer.BYTES; i++) {
+            if (a[aIndex + i] != b[bIndex + i]) return false;
+        }
+
+        return true;
+    }
+}
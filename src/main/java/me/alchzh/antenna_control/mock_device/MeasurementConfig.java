@@ -0,0 +1,111 @@
+package me.alchzh.antenna_control.mock_device;
+
+import me.alchzh.antenna_control.device.AntennaEvent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How a MockAntennaDevice produces measurements while acquisition (A0) is on
+ * <p>
+ * Every period the device sends a burst of burstLength measurements back to back, each of channels values. The
+ * default reproduces the original mock: one 96 channel float measurement every 5 seconds. For a kilohertz stream
+ * use a 1 ms period, or a 10 ms period with bursts of 10 to take fewer timer firings.
+ */
+public final class MeasurementConfig {
+    public static final MeasurementConfig DEFAULT = new MeasurementConfig(5, TimeUnit.SECONDS, 96);
+
+    /**
+     * Payload of the measurement events
+     */
+    public enum Format {
+        /**
+         * MEASUREMENT events, 4 byte floats
+         */
+        FLOAT32,
+        /**
+         * MEASUREMENT_INT16 events, 2 byte multiples of a scale
+         */
+        INT16
+    }
+
+    private final long periodNanos;
+    private final int channels;
+    private final int burstLength;
+    private final Format format;
+    private final float scale;
+
+    /**
+     * One float measurement per period
+     *
+     * @param period   Time between measurements
+     * @param unit     Unit of period
+     * @param channels Values per measurement
+     */
+    public MeasurementConfig(long period, TimeUnit unit, int channels) {
+        this(period, unit, channels, 1, Format.FLOAT32, 1);
+    }
+
+    /**
+     * @param period      Time between bursts
+     * @param unit        Unit of period
+     * @param channels    Values per measurement
+     * @param burstLength Measurements sent back to back every period
+     * @param format      Payload format
+     * @param scale       Value of one step of INT16 payloads. Ignored for FLOAT32.
+     */
+    public MeasurementConfig(long period, TimeUnit unit, int channels, int burstLength, Format format, float scale) {
+        if (period <= 0 || channels < 0 || burstLength <= 0) {
+            throw new IllegalArgumentException("Need a positive period and burst length and a channel count");
+        }
+        if (channels > AntennaEvent.MAX_MEASUREMENT_VALUES) {
+            throw new IllegalArgumentException("At most " + AntennaEvent.MAX_MEASUREMENT_VALUES + " channels");
+        }
+        if (format == Format.INT16 && !(scale > 0)) {
+            throw new IllegalArgumentException("INT16 scale must be positive");
+        }
+
+        this.periodNanos = unit.toNanos(period);
+        this.channels = channels;
+        this.burstLength = burstLength;
+        this.format = format;
+        this.scale = scale;
+    }
+
+    public long getPeriod(TimeUnit unit) {
+        return unit.convert(periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getBurstLength() {
+        return burstLength;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    /**
+     * @return Measurements per second
+     */
+    public double getRate() {
+        return burstLength * (double) TimeUnit.SECONDS.toNanos(1) / periodNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "MeasurementConfig{" +
+                "rate=" + getRate() + "/s" +
+                ", channels=" + channels +
+                ", burstLength=" + burstLength +
+                ", format=" + format +
+                (format == Format.INT16 ? ", scale=" + scale : "") +
+                '}';
+    }
+}
@@ -2,20 +2,26 @@ package me.alchzh.antenna_control.mock_device;
 
 import me.alchzh.antenna_control.device.AntennaCommand;
 import me.alchzh.antenna_control.device.AntennaDevice;
-import me.alchzh.antenna_control.device.EventEmitterImpl;
+import me.alchzh.antenna_control.device.AntennaEventEmitter;
 import me.alchzh.antenna_control.device.AntennaEvent;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Mocks a real Antenna device for testing
  */
-public class MockAntennaDevice extends EventEmitterImpl<AntennaEvent> implements AntennaDevice {
+public class MockAntennaDevice extends AntennaEventEmitter implements AntennaDevice {
     /**
      * The speed (in units / millisecond) that the sky drifts at
      */
     public static final double DRIFT_FACTOR = ((double) Integer.MAX_VALUE) / (180 * 240000);
+    /**
+     * Number of waypoints the trajectory queue holds
+     */
+    public static final int TRAJECTORY_CAPACITY = 256;
     private final int baseAz;
     private final int baseEl;
     private final int minAz;
@@ -23,12 +29,13 @@ public class MockAntennaDevice extends EventEmitterImpl<AntennaEvent> implements
     private final int maxAz;
     private final int maxEl;
     private final int speed;
+    private final MockClock clock;
 
     private int sensorAz;
     private int sensorEl;
-    private final int sensorInterval = 5000;
-    private final int sensorCount = 96;
+    private final int stateInterval = 1000;
     private final MockDataGenerator sensorDataGen = new MockDataGenerator(120, 5, 8);
+    private volatile MeasurementConfig measurementConfig = MeasurementConfig.DEFAULT;
 
     private ScheduledExecutorService ses;
     private ScheduledFuture<?> sendStateSF;
@@ -47,10 +54,39 @@ public class MockAntennaDevice extends EventEmitterImpl<AntennaEvent> implements
     private int startEl;
     private int destAz;
     private int destEl;
+    /**
+     * Correlation id of the G0 that started the current move
+     */
+    private int moveId;
+    /**
+     * Speeds (units / millisecond) of the current move on each axis. Full speed for G0, slower for a waypoint
+     * that has to take a given time.
+     */
+    private int azSpeed;
+    private int elSpeed;
+
+    /*
+     * Trajectory queue: ring of (az, el, time, correlation id) waypoints
+     */
+    private final int[] waypointAz = new int[TRAJECTORY_CAPACITY];
+    private final int[] waypointEl = new int[TRAJECTORY_CAPACITY];
+    private final int[] waypointTime = new int[TRAJECTORY_CAPACITY];
+    private final int[] waypointId = new int[TRAJECTORY_CAPACITY];
+    private int waypointHead = 0;
+    private int waypointCount = 0;
+    /**
+     * Whether the current move is to a waypoint from the queue
+     */
+    private boolean onWaypoint = false;
     //    private long baseSysTime;
     private byte[] baseSysTimeBA;
 
     private final Object COMMAND_MONITOR = new Object();
+    /**
+     * Held for a whole burst of measurements. A0 only cancels the last run without waiting for it, so a burst of
+     * that run may still be going when the next one starts, and sensorDataGen is not thread safe.
+     */
+    private final Object DATA_MONITOR = new Object();
 
     /**
      * @param baseAz Base azimuth. The antenna starts at the base position and the STOW command returns it to the base position
@@ -62,6 +98,22 @@ public class MockAntennaDevice extends EventEmitterImpl<AntennaEvent> implements
      * @param speed  The speed in units per millisecond of the antenna
      */
     public MockAntennaDevice(int baseAz, int baseEl, int minAz, int minEl, int maxAz, int maxEl, int speed) {
+        this(baseAz, baseEl, minAz, minEl, maxAz, maxEl, speed, SystemClock.INSTANCE);
+    }
+
+    /**
+     * @param baseAz Base azimuth. The antenna starts at the base position and the STOW command returns it to the base position
+     * @param baseEl Base elevation. The antenna starts at the base position and the STOW command returns it to the base position
+     * @param minAz  Minimum azimuth. For now, must be signed lower than max azimuth.
+     * @param minEl  Minimum elevation. For now, must be signed lower than max elevation.
+     * @param maxAz  Maximum azimuth. For now, must be signed higher than min azimuth.
+     * @param maxEl  Maximum elevation. For now, must be signed lower than min elevation.
+     * @param speed  The speed in units per millisecond of the antenna
+     * @param clock  Time source and timers of the device, e.g. a VirtualClock to run faster than real time
+     */
+    public MockAntennaDevice(int baseAz, int baseEl, int minAz, int minEl, int maxAz, int maxEl, int speed,
+                             MockClock clock) {
+        this.clock = clock;
 
         this.az = baseAz;
         this.el = baseEl;
@@ -77,12 +129,26 @@ public class MockAntennaDevice extends EventEmitterImpl<AntennaEvent> implements
         this.speed = speed;
     }
 
+    /**
+     * Sets the rate, channel count, bursts and payload format of measurements. Takes effect the next time
+     * acquisition is turned on.
+     *
+     * @param measurementConfig The configuration
+     */
+    public void setMeasurementConfig(MeasurementConfig measurementConfig) {
+        this.measurementConfig = measurementConfig;
+    }
+
+    public MeasurementConfig getMeasurementConfig() {
+        return measurementConfig;
+    }
+
     private int getTimeElapsed() {
         return getTimeElapsed(baseNanoTime);
     }
 
     private int getTimeElapsed(long since) {
-        return (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+        return (int) TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - since);
     }
 
     @Override
@@ -90,11 +156,17 @@ public class MockAntennaDevice extends EventEmitterImpl<AntennaEvent> implements
         synchronized (COMMAND_MONITOR) {
             if (command.type != AntennaCommand.Type.POWERON) {
                 if (!poweredOn) {
-                    send(AntennaEvent.Type.DEVICE_POWEROFF_ERROR);
+                    send(command.id, AntennaEvent.Type.DEVICE_POWEROFF_ERROR);
+                    return;
+                }
+                // A trajectory that doesn't fit is rejected whole, before it's issued
+                if (command.type == AntennaCommand.Type.TRAJECTORY
+                        && ByteBuffer.wrap(command.data).getInt() > TRAJECTORY_CAPACITY - waypointCount) {
+                    send(command.id, AntennaEvent.Type.TRAJECTORY_OVERFLOW_ERROR);
                     return;
                 }
                 sendState();
-                send(AntennaEvent.Type.COMMAND_ISSUED, command.toArray());
+                send(command.id, AntennaEvent.Type.COMMAND_ISSUED, command.withId(0).toArray());
             }
 
             ByteBuffer b = ByteBuffer.wrap(command.data);
@@ -102,37 +174,39 @@ public class MockAntennaDevice extends EventEmitterImpl<AntennaEvent> implements
             switch (command.type) {
                 case POWERON:
                     if (ses == null || ses.isShutdown()) {
-                        ses = Executors.newScheduledThreadPool(
-                                2, r -> new Thread(r, "mockAntennaDevice")
-                        );
-                        ((ScheduledThreadPoolExecutor) ses).setRemoveOnCancelPolicy(true);
+                        ses = clock.newScheduler();
                     }
 
                     poweredOn = true;
-                    long baseSysTime = System.currentTimeMillis();
-                    baseNanoTime = System.nanoTime();
+                    long baseSysTime = clock.currentTimeMillis();
+                    baseNanoTime = clock.nanoTime();
                     moveFinishedTime = baseNanoTime;
 
                     ByteBuffer tb = ByteBuffer.allocate(8);
                     tb.putLong(baseSysTime);
                     baseSysTimeBA = tb.array();
 
-                    sendControlInfo();
-                    sendStateSF = ses.scheduleAtFixedRate(this::sendState, 0, 1000, TimeUnit.MILLISECONDS);
+                    sendControlInfo(command.id);
+                    sendStateSF = ses.scheduleAtFixedRate(this::sendState, 0, stateInterval, TimeUnit.MILLISECONDS);
 
                     break;
                 case POWEROFF:
                     poweredOn = false;
+                    waypointCount = 0;
                     sendStateSF.cancel(true);
                     ses.shutdownNow();
                     break;
                 case G0:
                     updatePos();
 
-                    if (moveStartTime > 0) {
-                        send(AntennaEvent.Type.MOVE_CANCELED, az, el, destAz, destEl);
+                    if (moveTime >= 0) {
+                        send(moveId, AntennaEvent.Type.MOVE_CANCELED, az, el, destAz, destEl);
                     }
 
+                    moveId = command.id;
+                    waypointCount = 0;
+                    onWaypoint = false;
+
                     startAz = az;
                     startEl = el;
 
@@ -145,8 +219,29 @@ public class MockAntennaDevice extends EventEmitterImpl<AntennaEvent> implements
                     int azDist = Math.abs(destAz - startAz);
                     int elDist = Math.abs(destEl - startEl);
 
+                    azSpeed = speed;
+                    elSpeed = speed;
                     moveTime = Math.max(azDist, elDist) / speed;
-                    moveStartTime = System.nanoTime();
+                    moveStartTime = clock.nanoTime();
+                    break;
+                case TRAJECTORY:
+                    updatePos();
+
+                    int count = b.getInt();
+                    for (int i = 0; i < count; i++) {
+                        int slot = (waypointHead + waypointCount) % TRAJECTORY_CAPACITY;
+
+                        waypointAz[slot] = b.getInt();
+                        waypointEl[slot] = b.getInt();
+                        waypointTime[slot] = b.getInt();
+                        waypointId[slot] = command.id;
+                        waypointCount++;
+                    }
+
+                    // Otherwise the queue continues once the current move ends
+                    if (moveTime < 0 && waypointCount > 0) {
+                        startWaypoint(clock.nanoTime());
+                    }
                     break;
                 case T0:
                     tracking = b.get() != 0;
@@ -155,16 +250,22 @@ public class MockAntennaDevice extends EventEmitterImpl<AntennaEvent> implements
                     break;
                 case A0:
                     boolean on = b.get() != 0;
+                    if (dataCollectSF != null) {
+                        dataCollectSF.cancel(false);
+                        dataCollectSF = null;
+                    }
                     if (on) {
-                        if (dataCollectSF == null || dataCollectSF.isCancelled() || dataCollectSF.isDone()) {
-                            dataCollectSF = ses.scheduleAtFixedRate(this::sendData, 0, 5000, TimeUnit.MILLISECONDS);
-                        } else {
-                            dataCollectSF.cancel(true);
-                        }
+                        // Every run of acquisition gets its own buffer, and bursts take DATA_MONITOR, so a
+                        // restart never races the last run
+                        MeasurementConfig config = measurementConfig;
+                        float[] values = new float[config.getChannels()];
+
+                        dataCollectSF = ses.scheduleAtFixedRate(() -> sendData(config, values),
+                                0, config.getPeriod(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
                     }
                     break;
                 default:
-                    send(AntennaEvent.Type.UNKNOWN_COMMAND_ERROR, command.type.getCode());
+                    send(command.id, AntennaEvent.Type.UNKNOWN_COMMAND_ERROR, command.type.getCode());
                     break;
             }
         }
@@ -173,7 +274,7 @@ public class MockAntennaDevice extends EventEmitterImpl<AntennaEvent> implements
     private void updatePos() {
         if (tracking) {
             int adjust = (int) (DRIFT_FACTOR * getTimeElapsed(lastTrackTime));
-            lastTrackTime = System.nanoTime();
+            lastTrackTime = clock.nanoTime();
 
             startAz += adjust;
             sensorAz += adjust;
@@ -181,30 +282,48 @@ public class MockAntennaDevice extends EventEmitterImpl<AntennaEvent> implements
             destAz += adjust;
         }
 
-        if (moveStartTime > 0) {
+        // Several waypoints may have been passed since the last update
+        while (moveTime >= 0) {
             long timeDelta = getTimeElapsed(moveStartTime);
 
-            if (timeDelta >= moveTime) {
-                az = destAz;
-                el = destEl;
-
-                moveStartTime = -1;
-                moveTime = -1;
-                moveFinishedTime = System.nanoTime();
-                send(AntennaEvent.Type.MOVE_FINISHED, destAz, destEl);
-            } else {
+            if (timeDelta < moveTime) {
                 if (az < destAz) {
-                    az = Math.min(startAz + (int) timeDelta * speed, destAz);
+                    az = Math.min(startAz + (int) timeDelta * azSpeed, destAz);
                 } else {
-                    az = Math.max(startAz - (int) timeDelta * speed, destAz);
+                    az = Math.max(startAz - (int) timeDelta * azSpeed, destAz);
                 }
 
                 if (el < destEl) {
-                    el = Math.min(startEl + (int) timeDelta * speed, destEl);
+                    el = Math.min(startEl + (int) timeDelta * elSpeed, destEl);
                 } else {
-                    el = Math.max(startEl - (int) timeDelta * speed, destEl);
+                    el = Math.max(startEl - (int) timeDelta * elSpeed, destEl);
                 }
+                break;
+            }
+
+            az = destAz;
+            el = destEl;
+
+            if (onWaypoint) {
+                send(moveId, AntennaEvent.Type.WAYPOINT_REACHED, destAz, destEl, waypointCount);
             }
+
+            if (waypointCount > 0) {
+                // A G0 that the trajectory was queued behind still finishes
+                if (!onWaypoint) {
+                    send(moveId, AntennaEvent.Type.MOVE_FINISHED, destAz, destEl);
+                }
+
+                // The next segment starts when this one ended, not when we noticed
+                startWaypoint(moveStartTime + TimeUnit.MILLISECONDS.toNanos(moveTime));
+                continue;
+            }
+
+            moveStartTime = -1;
+            moveTime = -1;
+            onWaypoint = false;
+            moveFinishedTime = clock.nanoTime();
+            send(moveId, AntennaEvent.Type.MOVE_FINISHED, destAz, destEl);
         }
 
         // TODO: Work properly when min > max (i.e. crosses 180 degrees)
@@ -213,40 +332,109 @@ public class MockAntennaDevice extends EventEmitterImpl<AntennaEvent> implements
         }
     }
 
+    /**
+     * Starts moving to the next waypoint in the queue
+     *
+     * @param startTime nanoTime the move starts at
+     */
+    private void startWaypoint(long startTime) {
+        int slot = waypointHead;
+        waypointHead = (waypointHead + 1) % TRAJECTORY_CAPACITY;
+        waypointCount--;
+
+        int adjust = tracking ? (int) (DRIFT_FACTOR * getTimeElapsed(trackingStartTime)) : 0;
+
+        startAz = az;
+        startEl = el;
+        destAz = waypointAz[slot] + adjust;
+        destEl = waypointEl[slot];
+        moveId = waypointId[slot];
+
+        int azDist = Math.abs(destAz - startAz);
+        int elDist = Math.abs(destEl - startEl);
+
+        // Take the requested time, or longer if the slew speed doesn't allow it
+        long duration = Math.max(waypointTime[slot], Math.max(azDist, elDist) / speed);
+        azSpeed = duration == 0 ? speed : (int) Math.min(speed, (azDist + duration - 1) / duration);
+        elSpeed = duration == 0 ? speed : (int) Math.min(speed, (elDist + duration - 1) / duration);
+
+        moveTime = duration;
+        moveStartTime = startTime;
+        onWaypoint = true;
+
+        // Update as the waypoint is reached, so the queue keeps flowing between state updates
+        long delay = Math.max(0, moveTime - getTimeElapsed(moveStartTime));
+        ses.schedule(this::sendWaypointUpdate, delay + 1, TimeUnit.MILLISECONDS);
+    }
+
+    private void sendWaypointUpdate() {
+        synchronized (COMMAND_MONITOR) {
+            try {
+                updatePos();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     private void sendState() {
-        try {
-            updatePos();
-            send(AntennaEvent.Type.CURRENT_STATE, az, el, destAz, destEl);
-        } catch (Exception e) {
-            e.printStackTrace();
+        synchronized (COMMAND_MONITOR) {
+            try {
+                updatePos();
+                send(AntennaEvent.Type.CURRENT_STATE, az, el, destAz, destEl);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
     }
 
-    private void sendData() {
+    /**
+     * Sends one burst of measurements, preceded by the current state if the dish moved since the last one
+     *
+     * @param config Configuration acquisition was started with
+     * @param values Buffer of config.getChannels() values
+     */
+    private void sendData(MeasurementConfig config, float[] values) {
         try {
-            sendState();
+            synchronized (DATA_MONITOR) {
+                boolean moved;
 
-            if (az != sensorAz || el != sensorEl) {
-                sensorDataGen.getNewMean();
-                sensorAz = az;
-                sensorEl = el;
-            }
+                synchronized (COMMAND_MONITOR) {
+                    updatePos();
 
-            ByteBuffer measurementBuffer = ByteBuffer.allocate(Integer.BYTES + sensorCount * Float.BYTES);
-            measurementBuffer.putInt(sensorCount);
-            for (int i = 0; i < sensorCount; i++) {
-                measurementBuffer.putFloat(sensorDataGen.collectData());
-            }
+                    moved = az != sensorAz || el != sensorEl;
+                    if (moved) {
+                        send(AntennaEvent.Type.CURRENT_STATE, az, el, destAz, destEl);
+                        sensorAz = az;
+                        sensorEl = el;
+                    }
+                }
+
+                if (moved) {
+                    sensorDataGen.getNewMean();
+                }
 
-            measurementBuffer.flip();
-            send(AntennaEvent.Type.MEASUREMENT, measurementBuffer.array());
+                int channels = config.getChannels();
+                for (int i = 0; i < config.getBurstLength(); i++) {
+                    sensorDataGen.collectData(values, channels);
+
+                    if (config.getFormat() == MeasurementConfig.Format.INT16) {
+                        sendEvent(AntennaEvent.measurementInt16(getTimeElapsed(), values, channels, config.getScale()));
+                    } else {
+                        sendEvent(AntennaEvent.measurement(getTimeElapsed(), values, channels));
+                    }
+                }
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private void sendControlInfo() {
-        send(AntennaEvent.Type.BASE_TIME, baseSysTimeBA);
+    /**
+     * @param id Correlation id of the POWERON, echoed in BASE_TIME
+     */
+    private void sendControlInfo(int id) {
+        send(id, AntennaEvent.Type.BASE_TIME, baseSysTimeBA);
         send(AntennaEvent.Type.POSITION_UNIT_SIZE, (byte) 0x04);
         send(AntennaEvent.Type.CONTROL_SPEED, speed);
         send(AntennaEvent.Type.CONTROL_POSITION_RANGE, minAz, maxAz, minEl, maxEl);
@@ -257,13 +445,30 @@ public class MockAntennaDevice extends EventEmitterImpl<AntennaEvent> implements
      * @param data Sends properly packed data event to every registered listener
      */
     private void send(AntennaEvent.Type eventType, byte... data) {
-        sendEvent(new AntennaEvent(eventType, getTimeElapsed(), data));
+        send(0, eventType, data);
     }
 
     /**
      * @param data Sends properly packed data event to every registered listener
      */
     private void send(AntennaEvent.Type eventType, int... data) {
-        sendEvent(new AntennaEvent(eventType, getTimeElapsed(), data));
+        send(0, eventType, data);
+    }
+
+    /**
+     * @param id   Correlation id of the command the event responds to, or 0
+     * @param data Sends properly packed data event to every registered listener
+     */
+    private void send(int id, AntennaEvent.Type eventType, byte... data) {
+        sendEvent(new AntennaEvent(eventType, getTimeElapsed(), data, id));
+    }
+
+    /**
+     * @param id   Correlation id of the command the event responds to, or 0
+     * @param data Sends properly packed data event to every registered listener
+     */
+    private void send(int id, AntennaEvent.Type eventType, int... data) {
+        AntennaEvent event = new AntennaEvent(eventType, getTimeElapsed(), data);
+        sendEvent(id == 0 ? event : event.withId(id));
     }
 }
@@ -0,0 +1,27 @@
+package me.alchzh.antenna_control.mock_device;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Time source and timers of a MockAntennaDevice
+ * <p>
+ * SystemClock runs the mock in real time. VirtualClock simulates time, jumping straight from one timer to the next.
+ */
+public interface MockClock {
+    /**
+     * @return Monotonic time in nanoseconds, like System.nanoTime()
+     */
+    long nanoTime();
+
+    /**
+     * @return Wall clock time in milliseconds since the epoch, like System.currentTimeMillis()
+     */
+    long currentTimeMillis();
+
+    /**
+     * Creates a scheduler whose timers run on this clock. Shutting it down only cancels its own timers.
+     *
+     * @return The scheduler
+     */
+    ScheduledExecutorService newScheduler();
+}
@@ -1,9 +1,55 @@
 package me.alchzh.antenna_control.mock_device;
 
-import java.util.Random;
+import java.util.SplittableRandom;
 
+/**
+ * Generates Gaussian mock sensor data
+ * Gaussians come from a ziggurat (Marsaglia and Tsang) over SplittableRandom, which takes one random long and a
+ * multiply for about 99% of values, instead of Random.nextGaussian's synchronized polar method with a log and
+ * a square root per pair.
+ */
 public class MockDataGenerator {
-    private final Random fRandom = new Random();
+    private static final int LAYERS = 128;
+    /**
+     * Start of the tail of the ziggurat
+     */
+    private static final double R = 3.442619855899;
+    /**
+     * Area of every layer
+     */
+    private static final double V = 9.91256303526217e-3;
+    private static final double M = 2147483648.0;
+
+    /*
+     * Per layer: integer threshold under which a sample is inside the layer's rectangle, width scale and
+     * density at the layer's edge
+     */
+    private static final long[] KN = new long[LAYERS];
+    private static final double[] WN = new double[LAYERS];
+    private static final double[] FN = new double[LAYERS];
+
+    static {
+        double dn = R;
+        double tn = dn;
+        double q = V / Math.exp(-.5 * dn * dn);
+
+        KN[0] = (long) ((dn / q) * M);
+        KN[1] = 0;
+        WN[0] = q / M;
+        WN[LAYERS - 1] = dn / M;
+        FN[0] = 1;
+        FN[LAYERS - 1] = Math.exp(-.5 * dn * dn);
+
+        for (int i = LAYERS - 2; i >= 1; i--) {
+            dn = Math.sqrt(-2 * Math.log(V / dn + Math.exp(-.5 * dn * dn)));
+            KN[i + 1] = (long) ((dn / tn) * M);
+            tn = dn;
+            FN[i] = Math.exp(-.5 * dn * dn);
+            WN[i] = dn / M;
+        }
+    }
+
+    private final SplittableRandom fRandom;
     private float iMean;
     private float iStdDev;
     private float aStdDev;
@@ -11,6 +57,20 @@ public class MockDataGenerator {
     private float aMean;
 
     public MockDataGenerator(float iMean, float iStdDev, float aStdDev) {
+        this(iMean, iStdDev, aStdDev, new SplittableRandom());
+    }
+
+    /**
+     * Generator producing the same data every run
+     *
+     * @param seed Seed of the random numbers
+     */
+    public MockDataGenerator(float iMean, float iStdDev, float aStdDev, long seed) {
+        this(iMean, iStdDev, aStdDev, new SplittableRandom(seed));
+    }
+
+    private MockDataGenerator(float iMean, float iStdDev, float aStdDev, SplittableRandom random) {
+        this.fRandom = random;
         this.iMean = iMean;
         this.iStdDev = iStdDev;
         this.aStdDev = aStdDev;
@@ -38,7 +98,63 @@ public class MockDataGenerator {
         return getGaussian(aMean, aStdDev);
     }
 
+    /**
+     * Fills the first count entries of a reusable array with new data
+     *
+     * @param dst   Array to fill
+     * @param count Number of values to generate
+     */
+    public void collectData(float[] dst, int count) {
+        float mean = aMean;
+        float stdDev = aStdDev;
+
+        for (int i = 0; i < count; i++) {
+            dst[i] = mean + (float) nextGaussian() * stdDev;
+        }
+    }
+
     private float getGaussian(float mean, float stdDev){
-        return mean + (float)fRandom.nextGaussian() * stdDev;
+        return mean + (float) nextGaussian() * stdDev;
+    }
+
+    /**
+     * @return A standard normal value
+     */
+    private double nextGaussian() {
+        long bits = fRandom.nextLong();
+        // Layer from the top bits, sample from the low 32, so the two are independent
+        int iz = (int) (bits >>> (Long.SIZE - 7));
+        int hz = (int) bits;
+
+        if (Math.abs((long) hz) < KN[iz]) return hz * WN[iz];
+
+        return nextGaussianSlow(hz, iz);
+    }
+
+    /**
+     * The rare case of a sample outside its layer's rectangle: the tail, or the wedge between rectangle and curve
+     */
+    private double nextGaussianSlow(int hz, int iz) {
+        while (true) {
+            double x = hz * WN[iz];
+
+            if (iz == 0) {
+                double y;
+                do {
+                    x = -Math.log(1 - fRandom.nextDouble()) / R;
+                    y = -Math.log(1 - fRandom.nextDouble());
+                } while (y + y < x * x);
+
+                return hz > 0 ? R + x : -R - x;
+            }
+
+            if (FN[iz] + fRandom.nextDouble() * (FN[iz - 1] - FN[iz]) < Math.exp(-.5 * x * x)) return x;
+
+            long bits = fRandom.nextLong();
+            iz = (int) (bits >>> (Long.SIZE - 7));
+            hz = (int) bits;
+
+            if (Math.abs((long) hz) < KN[iz]) return hz * WN[iz];
+        }
     }
 }
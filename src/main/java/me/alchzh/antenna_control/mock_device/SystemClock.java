@@ -0,0 +1,34 @@
+package me.alchzh.antenna_control.mock_device;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * Real time, with timers on a small thread pool
+ */
+public class SystemClock implements MockClock {
+    public static final SystemClock INSTANCE = new SystemClock();
+
+    private SystemClock() {
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public ScheduledExecutorService newScheduler() {
+        ScheduledThreadPoolExecutor ses = new ScheduledThreadPoolExecutor(
+                2, r -> new Thread(r, "mockAntennaDevice")
+        );
+        ses.setRemoveOnCancelPolicy(true);
+
+        return ses;
+    }
+}
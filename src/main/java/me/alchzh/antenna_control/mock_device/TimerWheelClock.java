@@ -0,0 +1,341 @@
+package me.alchzh.antenna_control.mock_device;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Real time, with the timers of any number of devices on one hashed timer wheel
+ * <p>
+ * A single thread advances the wheel once per tick and hands due timers to a small shared worker pool, so a farm
+ * of thousands of mock devices runs on a handful of threads instead of two per device. Timers fire on the first
+ * tick at or after their due time, so they are up to one tick late.
+ */
+public class TimerWheelClock implements MockClock, AutoCloseable {
+    /**
+     * Slots on the wheel. Must be a power of two.
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final ExecutorService workers;
+    private final Thread wheelThread;
+    private volatile boolean closed = false;
+
+    /**
+     * Timers to be put on the wheel, from any thread
+     */
+    private final Queue<Task<?>> inbox = new ConcurrentLinkedQueue<>();
+    /*
+     * Only touched by the wheel thread: heads of the timer list of each slot and the next tick to expire
+     */
+    private final Task<?>[] slots = new Task<?>[WHEEL_SIZE];
+    private long tick = 0;
+
+    /**
+     * Clock with a 1 millisecond tick
+     *
+     * @param workerCount Threads running the timers
+     */
+    public TimerWheelClock(int workerCount) {
+        this(workerCount, 1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param workerCount Threads running the timers
+     * @param tick        Resolution of the timers
+     * @param unit        Unit of tick
+     */
+    public TimerWheelClock(int workerCount, long tick, TimeUnit unit) {
+        if (workerCount <= 0 || tick <= 0) {
+            throw new IllegalArgumentException("Need at least one worker and a positive tick");
+        }
+
+        this.tickNanos = unit.toNanos(tick);
+
+        AtomicInteger workerNumber = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "timerWheelWorker-" + workerNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        wheelThread = new Thread(this::runWheel, "timerWheel");
+        wheelThread.setDaemon(true);
+        wheelThread.start();
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public ScheduledExecutorService newScheduler() {
+        return new Scheduler();
+    }
+
+    /**
+     * Stops the wheel and the workers. Timers still pending never run.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(wheelThread);
+        workers.shutdownNow();
+    }
+
+    private void runWheel() {
+        while (!closed) {
+            long now = System.nanoTime();
+
+            while (tick <= (now - startNanos) / tickNanos) {
+                drainInbox();
+                expire();
+                tick++;
+            }
+
+            long sleep = startNanos + tick * tickNanos - System.nanoTime();
+            if (sleep > 0) LockSupport.parkNanos(this, sleep);
+        }
+    }
+
+    /**
+     * Puts new timers in the slot of the tick they are due on. Timers already due go in the slot about to expire.
+     */
+    private void drainInbox() {
+        Task<?> task;
+        while ((task = inbox.poll()) != null) {
+            if (task.isCancelled()) continue;
+
+            long due = Math.max(tick, (task.time - startNanos + tickNanos - 1) / tickNanos);
+            int slot = (int) (due & (WHEEL_SIZE - 1));
+
+            task.rounds = (due - tick) / WHEEL_SIZE;
+            task.next = slots[slot];
+            slots[slot] = task;
+        }
+    }
+
+    private void expire() {
+        int slot = (int) (tick & (WHEEL_SIZE - 1));
+        Task<?> previous = null;
+        Task<?> task = slots[slot];
+
+        while (task != null) {
+            Task<?> next = task.next;
+
+            if (task.isCancelled() || task.rounds == 0) {
+                // Unlink
+                if (previous == null) {
+                    slots[slot] = next;
+                } else {
+                    previous.next = next;
+                }
+                task.next = null;
+
+                if (!task.isCancelled()) {
+                    try {
+                        workers.execute(task);
+                    } catch (RejectedExecutionException e) {
+                        // Closed
+                        return;
+                    }
+                }
+            } else {
+                task.rounds--;
+                previous = task;
+            }
+
+            task = next;
+        }
+    }
+
+    private final class Task<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+        private final Scheduler owner;
+        /**
+         * Period in nanoseconds, or 0 if the timer runs once
+         */
+        private final long period;
+        /**
+         * nanoTime the timer is due at
+         */
+        private volatile long time;
+
+        /*
+         * Only touched by the wheel thread: full turns of the wheel left and the next timer in the slot
+         */
+        private long rounds;
+        private Task<?> next;
+
+        private Task(Scheduler owner, Callable<V> callable, long time) {
+            super(callable);
+            this.owner = owner;
+            this.time = time;
+            this.period = 0;
+        }
+
+        private Task(Scheduler owner, Runnable runnable, long time, long period) {
+            super(runnable, null);
+            this.owner = owner;
+            this.time = time;
+            this.period = period;
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period > 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (runAndReset()) {
+                if (owner.shutdown) {
+                    cancel(false);
+                } else {
+                    time += period;
+                    inbox.add(this);
+                }
+            }
+        }
+
+        @Override
+        protected void done() {
+            owner.tasks.remove(this);
+        }
+    }
+
+    /**
+     * One device's timers on the wheel
+     */
+    private final class Scheduler extends AbstractExecutorService implements ScheduledExecutorService {
+        private volatile boolean shutdown = false;
+        /**
+         * Timers that haven't finished or been canceled
+         */
+        private final Set<Task<?>> tasks = ConcurrentHashMap.newKeySet();
+
+        private <V> Task<V> submit(Task<V> task) {
+            if (shutdown || closed) {
+                throw new RejectedExecutionException("Scheduler is shut down");
+            }
+
+            tasks.add(task);
+            inbox.add(task);
+            return task;
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            return schedule(Executors.callable(command), delay, unit);
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+            return submit(new Task<>(this, callable, System.nanoTime() + Math.max(0, unit.toNanos(delay))));
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period,
+                                                      TimeUnit unit) {
+            if (period <= 0) {
+                throw new IllegalArgumentException("Period must be positive");
+            }
+
+            return submit(new Task<Void>(this, command,
+                    System.nanoTime() + Math.max(0, unit.toNanos(initialDelay)), unit.toNanos(period)));
+        }
+
+        /**
+         * Runs at a fixed rate; the mock's timers are short enough for the difference not to matter
+         */
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay,
+                                                         TimeUnit unit) {
+            return scheduleAtFixedRate(command, initialDelay, delay, unit);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            schedule(command, 0, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Stops accepting timers. Periodic timers stop, delayed ones still run.
+         */
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+
+            List<Runnable> removed = new ArrayList<>();
+            for (Task<?> task : tasks) {
+                if (task.cancel(false)) removed.add(task);
+            }
+
+            return removed;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown && tasks.isEmpty();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+            while (!isTerminated()) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return false;
+
+                TimeUnit.MILLISECONDS.sleep(Math.min(10, TimeUnit.NANOSECONDS.toMillis(left) + 1));
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package me.alchzh.antenna_control.mock_device;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulated time for discrete-event runs of a MockAntennaDevice
+ * <p>
+ * Time only moves when the clock is driven: runNext(), advance() and runUntil() run the due timers in time order
+ * on the calling thread, jumping the time straight to each one. A mock plus a script started on a scheduler from
+ * newScheduler() then runs as fast as the timers can be executed, and timers due at the same time always run in
+ * the order they were scheduled, so runs are repeatable.
+ * <p>
+ * Timers may be scheduled from any thread, but the clock should be driven by one thread at a time.
+ */
+public class VirtualClock implements MockClock {
+    private final long epochMillis;
+    private volatile long now = 0;
+
+    /*
+     * Guarded by this
+     */
+    private final PriorityQueue<Task<?>> queue = new PriorityQueue<>();
+    private long sequence = 0;
+
+    /**
+     * Clock starting at the epoch
+     */
+    public VirtualClock() {
+        this(0);
+    }
+
+    /**
+     * @param epochMillis Wall clock time (milliseconds since the epoch) the clock starts at
+     */
+    public VirtualClock(long epochMillis) {
+        this.epochMillis = epochMillis;
+    }
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return epochMillis + TimeUnit.NANOSECONDS.toMillis(now);
+    }
+
+    @Override
+    public ScheduledExecutorService newScheduler() {
+        return new Scheduler();
+    }
+
+    /**
+     * @return Number of timers waiting to run
+     */
+    public synchronized int getPendingCount() {
+        return queue.size();
+    }
+
+    /**
+     * Moves the time to the earliest timer and runs it
+     *
+     * @return false if there was no timer to run
+     */
+    public boolean runNext() {
+        Task<?> task;
+
+        synchronized (this) {
+            task = queue.poll();
+            if (task == null) return false;
+
+            task.owner.queued--;
+            now = Math.max(now, task.time);
+        }
+
+        task.run();
+        return true;
+    }
+
+    /**
+     * Runs every timer due in the next amount of time and leaves the time at its end
+     *
+     * @param time Amount of time to advance by
+     * @param unit Unit of time
+     */
+    public void advance(long time, TimeUnit unit) {
+        long deadline = now + unit.toNanos(time);
+
+        while (true) {
+            synchronized (this) {
+                Task<?> next = queue.peek();
+                if (next == null || next.time > deadline) break;
+            }
+
+            runNext();
+        }
+
+        now = Math.max(now, deadline);
+    }
+
+    /**
+     * Runs timers until a future is done, such as a script's completion or a command's response
+     * Periodic timers keep the clock busy forever, so the run is bounded.
+     *
+     * @param future Future to wait for
+     * @param limit  Most time to simulate
+     * @param unit   Unit of limit
+     * @return true if the future is done
+     */
+    public boolean runUntil(Future<?> future, long limit, TimeUnit unit) {
+        long deadline = now + unit.toNanos(limit);
+
+        while (!future.isDone()) {
+            synchronized (this) {
+                Task<?> next = queue.peek();
+                if (next == null || next.time > deadline) break;
+            }
+
+            runNext();
+        }
+
+        return future.isDone();
+    }
+
+    private synchronized void enqueue(Task<?> task) {
+        task.sequence = sequence++;
+        task.owner.queued++;
+        queue.add(task);
+    }
+
+    private synchronized void dequeue(Task<?> task) {
+        if (queue.remove(task)) {
+            task.owner.queued--;
+        }
+    }
+
+    private final class Task<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+        private final Scheduler owner;
+        /**
+         * Period in nanoseconds, or 0 if the timer runs once
+         */
+        private final long period;
+        private long time;
+        /**
+         * Breaks ties between timers due at the same time
+         */
+        private long sequence;
+
+        private Task(Scheduler owner, Callable<V> callable, long time) {
+            super(callable);
+            this.owner = owner;
+            this.time = time;
+            this.period = 0;
+        }
+
+        private Task(Scheduler owner, Runnable runnable, long time, long period) {
+            super(runnable, null);
+            this.owner = owner;
+            this.time = time;
+            this.period = period;
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period > 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - now, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            if (o == this) return 0;
+
+            if (o instanceof Task) {
+                Task<?> other = (Task<?>) o;
+                int c = Long.compare(time, other.time);
+                return c != 0 ? c : Long.compare(sequence, other.sequence);
+            }
+
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (runAndReset() && !owner.shutdown) {
+                time += period;
+                enqueue(this);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean canceled = super.cancel(mayInterruptIfRunning);
+            if (canceled) dequeue(this);
+
+            return canceled;
+        }
+    }
+
+    /**
+     * One user's timers on the clock
+     */
+    private final class Scheduler extends AbstractExecutorService implements ScheduledExecutorService {
+        private volatile boolean shutdown = false;
+        /**
+         * Timers of this scheduler in the queue, guarded by the clock
+         */
+        private int queued = 0;
+
+        private <V> Task<V> submit(Task<V> task) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Scheduler is shut down");
+            }
+
+            enqueue(task);
+            return task;
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            return schedule(Executors.callable(command), delay, unit);
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+            return submit(new Task<>(this, callable, now + Math.max(0, unit.toNanos(delay))));
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period,
+                                                      TimeUnit unit) {
+            if (period <= 0) {
+                throw new IllegalArgumentException("Period must be positive");
+            }
+
+            return submit(new Task<Void>(this, command, now + Math.max(0, unit.toNanos(initialDelay)),
+                    unit.toNanos(period)));
+        }
+
+        /**
+         * Timers take no simulated time to run, so a fixed delay is the same as a fixed rate
+         */
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay,
+                                                         TimeUnit unit) {
+            return scheduleAtFixedRate(command, initialDelay, delay, unit);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            schedule(command, 0, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Stops accepting timers. Periodic timers stop, delayed ones still run.
+         */
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+
+            List<Runnable> removed = new ArrayList<>();
+            synchronized (VirtualClock.this) {
+                queue.removeIf(task -> {
+                    if (task.owner != this) return false;
+
+                    removed.add(task);
+                    queued--;
+                    return true;
+                });
+            }
+
+            return removed;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            synchronized (VirtualClock.this) {
+                return shutdown && queued == 0;
+            }
+        }
+
+        /**
+         * Simulated time can't pass while blocked, so this doesn't wait
+         */
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return isTerminated();
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package me.alchzh.antenna_control.network;
+
+import me.alchzh.antenna_control.device.AntennaCommand;
+import me.alchzh.antenna_control.device.AntennaCommandView;
+import me.alchzh.antenna_control.device.AntennaEvent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+
+/**
+ * A single client connected to a NetworkAntennaServer
+ * Every session owns its own read buffer and outbound frame queue so a slow client never holds up the others
+ */
+class ClientSession {
+    /**
+     * Most bytes of unsent frames a session may hold before new frames are dropped
+     */
+    static final int MAX_BACKLOG = 1 << 20;
+    /**
+     * Most frames handed to a single gathering write
+     */
+    private static final int MAX_BATCH = 64;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final CommandHandler handler;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(2048);
+    private final AntennaCommandView view = new AntennaCommandView();
+    /**
+     * Frames waiting to be written, oldest first. Guarded by this.
+     */
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+    private int backlog = 0;
+    /**
+     * Last frame queued per conflated type. Guarded by this.
+     */
+    private final EnumMap<AntennaEvent.Type, ByteBuffer> latest = new EnumMap<>(AntennaEvent.Type.class);
+
+    /**
+     * @param channel The accepted (non-blocking) client channel
+     * @param key     The key the channel is registered with on the server selector
+     * @param handler Receives the commands the client sends
+     */
+    ClientSession(SocketChannel channel, SelectionKey key, CommandHandler handler) {
+        this.channel = channel;
+        this.key = key;
+        this.handler = handler;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Queues a complete frame for the selector thread to write. Called from whatever thread fired the event;
+     * never touches the socket so the caller never blocks.
+     *
+     * @param frame Frame to send (not consumed, may be shared between sessions)
+     * @return false if the frame was dropped because the client is too far behind
+     */
+    synchronized boolean enqueue(ByteBuffer frame) {
+        if (backlog + frame.remaining() > MAX_BACKLOG) {
+            return false;
+        }
+
+        outbound.add(frame.duplicate());
+        backlog += frame.remaining();
+        return true;
+    }
+
+    /**
+     * Queues a frame of a conflated type. If the last frame of that type is still waiting and hasn't started to
+     * be written, a slow client only ever gets the newest one: at the tail of the queue it is overwritten in place,
+     * further up it is dropped and the new frame queued at the tail, so event time never goes backwards on the
+     * wire.
+     *
+     * @param type  Type of the event in the frame
+     * @param frame Frame to send (not consumed, may be shared between sessions)
+     * @return false if the frame was dropped because the client is too far behind
+     */
+    synchronized boolean enqueueLatest(AntennaEvent.Type type, ByteBuffer frame) {
+        ByteBuffer pending = latest.get(type);
+        ByteBuffer reuse = null;
+
+        if (pending != null && pending.position() == 0) {
+            if (pending == outbound.peekLast()) {
+                if (pending.limit() == frame.remaining()) {
+                    pending.put(frame.duplicate());
+                    pending.flip();
+                    return true;
+                }
+            } else {
+                removeQueued(pending);
+                if (pending.capacity() == frame.remaining()) reuse = pending;
+            }
+        }
+
+        if (backlog + frame.remaining() > MAX_BACKLOG) {
+            return false;
+        }
+
+        // Our own copy, since it may be overwritten later
+        ByteBuffer copy = reuse != null ? reuse : ByteBuffer.allocate(frame.remaining());
+        copy.clear();
+        copy.put(frame.duplicate());
+        copy.flip();
+
+        outbound.add(copy);
+        latest.put(type, copy);
+        backlog += copy.remaining();
+        return true;
+    }
+
+    /**
+     * Removes an unwritten frame from the queue. Frames are compared by identity, not content.
+     */
+    private void removeQueued(ByteBuffer frame) {
+        for (Iterator<ByteBuffer> it = outbound.descendingIterator(); it.hasNext(); ) {
+            if (it.next() == frame) {
+                it.remove();
+                backlog -= frame.remaining();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes queued frames in batches with gathering writes until the queue is empty or the socket stops
+     * accepting data. Only called from the selector thread, which is the single writer for the channel.
+     *
+     * @throws IOException On any IOException
+     */
+    synchronized void flush() throws IOException {
+        while (!outbound.isEmpty()) {
+            int n = 0;
+            for (ByteBuffer frame : outbound) {
+                batch[n++] = frame;
+                if (n == MAX_BATCH) break;
+            }
+
+            long written = channel.write(batch, 0, n);
+            backlog -= written;
+
+            while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                outbound.poll();
+            }
+
+            if (batch[n - 1].hasRemaining()) {
+                // Socket buffer is full, wait for OP_WRITE
+                break;
+            }
+        }
+
+        Arrays.fill(batch, null);
+
+        if (!key.isValid()) return;
+
+        if (!outbound.isEmpty()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Reads whatever is available and hands every complete command in the stream to the handler.
+     * Only called from the selector thread.
+     *
+     * @return false if the client closed the connection
+     * @throws IOException On any IOException
+     */
+    boolean read() throws IOException {
+        if (channel.read(readBuffer) == -1) {
+            return false;
+        }
+
+        readBuffer.flip();
+
+        AntennaCommand command;
+        while ((command = readCommand()) != null) {
+            handler.commandReceived(this, command);
+        }
+
+        readBuffer.compact();
+        return true;
+    }
+
+    /**
+     * Decodes one command frame (code, data, newline) from the read buffer
+     *
+     * @return The command, or null if the buffer doesn't hold a complete frame yet
+     * @throws IOException If the frame starts with an unknown code
+     */
+    private AntennaCommand readCommand() throws IOException {
+        if (!readBuffer.hasRemaining()) return null;
+
+        try {
+            view.wrap(readBuffer, readBuffer.position());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        if (view.getDataLength() == -1) return null;
+
+        // frame + newline
+        int frameLength = view.getFrameLength() + 1;
+
+        if (readBuffer.remaining() < frameLength) {
+            if (frameLength > readBuffer.capacity()) {
+                growReadBuffer(frameLength);
+            }
+            return null;
+        }
+
+        AntennaCommand command = view.toCommand();
+        readBuffer.position(readBuffer.position() + frameLength);
+
+        return command;
+    }
+
+    /**
+     * Replaces the read buffer with a larger one holding the same unread bytes, so a long TRAJECTORY can still
+     * be assembled instead of filling the buffer and never being read
+     *
+     * @param minCapacity Size of the frame that has to fit
+     */
+    private void growReadBuffer(int minCapacity) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(minCapacity, readBuffer.capacity() * 2));
+        grown.put(readBuffer);
+        grown.flip();
+        readBuffer = grown;
+    }
+
+    /**
+     * Closes the connection and tells the handler
+     */
+    void close() {
+        key.cancel();
+        handler.sessionClosed(this);
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            return "closed session";
+        }
+    }
+
+    /**
+     * Receives commands decoded by a session
+     */
+    @FunctionalInterface
+    interface CommandHandler {
+        void commandReceived(ClientSession session, AntennaCommand command);
+
+        default void sessionClosed(ClientSession session) {
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package me.alchzh.antenna_control.network;
+
+import me.alchzh.antenna_control.mock_device.MockAntennaDevice;
+import me.alchzh.antenna_control.mock_device.TimerWheelClock;
+
+import java.io.IOException;
+
+import static me.alchzh.antenna_control.util.Units.u;
+
+/**
+ * Many simulated devices for load testing controllers and network code at fleet scale
+ * <p>
+ * Every device runs its timers on one shared TimerWheelClock and is served on its own port by one
+ * NetworkAntennaServer, so the whole farm takes the wheel thread, the workers and one selector thread no matter
+ * how many devices it has.
+ */
+public class MockAntennaFarm {
+    private final TimerWheelClock clock;
+    private final MockAntennaDevice[] devices;
+    private final NetworkAntennaServer server;
+
+    /**
+     * Creates identical devices, all starting at (0, 0)
+     *
+     * @param count   Number of devices
+     * @param workers Threads running the timers of every device
+     * @param speed   Speed of every device in units / millisecond
+     * @throws IOException On any IOException
+     */
+    public MockAntennaFarm(int count, int workers, int speed) throws IOException {
+        clock = new TimerWheelClock(workers);
+        devices = new MockAntennaDevice[count];
+
+        for (int i = 0; i < count; i++) {
+            devices[i] = new MockAntennaDevice(0, 0, 0, 0, u(135), u(70), speed, clock);
+        }
+
+        server = new NetworkAntennaServer();
+    }
+
+    /**
+     * Spins up a farm listening on consecutive ports
+     * Arguments: device count (default 1000), first port (default 52532), timer workers (default 4)
+     *
+     * @param args Command line arguments
+     * @throws IOException On any IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int basePort = args.length > 1 ? Integer.parseInt(args[1]) : 52532;
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        MockAntennaFarm farm = new MockAntennaFarm(count, workers, u(100 / 1000.0));
+        farm.listen("127.0.0.1", basePort);
+    }
+
+    public int getDeviceCount() {
+        return devices.length;
+    }
+
+    /**
+     * @param index Index of the device
+     * @return The device, for driving it directly instead of over the network
+     */
+    public MockAntennaDevice getDevice(int index) {
+        return devices[index];
+    }
+
+    /**
+     * Serves device i on port basePort + i and runs the server on the calling thread until the farm is closed
+     *
+     * @param host     Host to bind to
+     * @param basePort Port of the first device
+     * @throws IOException If a port can't be bound
+     */
+    public void listen(String host, int basePort) throws IOException {
+        for (int i = 0; i < devices.length; i++) {
+            server.bind(devices[i], host, basePort + i);
+        }
+
+        server.run();
+    }
+
+    public void close() throws IOException {
+        server.close();
+        clock.close();
+    }
+}
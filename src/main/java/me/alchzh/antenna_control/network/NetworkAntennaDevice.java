@@ -2,22 +2,27 @@ package me.alchzh.antenna_control.network;
 
 import me.alchzh.antenna_control.device.AntennaCommand;
 import me.alchzh.antenna_control.device.AntennaDevice;
-import me.alchzh.antenna_control.device.EventEmitterImpl;
+import me.alchzh.antenna_control.device.AntennaEventEmitter;
 import me.alchzh.antenna_control.device.AntennaEvent;
+import me.alchzh.antenna_control.device.EventFrameDecoder;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
 /**
  * A device that communicates over a TCP socket
  */
-public class NetworkAntennaDevice extends EventEmitterImpl<AntennaEvent> implements AntennaDevice, Runnable {
+public class NetworkAntennaDevice extends AntennaEventEmitter implements AntennaDevice, Runnable {
     private SocketChannel client;
-    private final ByteBuffer writeBuffer = ByteBuffer.allocate(2048);
-    private final ByteBuffer readBuffer = ByteBuffer.allocate(2048);
+    /**
+     * Guarded by WRITE_MONITOR
+     */
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(2048);
+    private final EventFrameDecoder frames = new EventFrameDecoder(2048);
+
+    private final Object WRITE_MONITOR = new Object();
 
     /**
      * Connects to a device wrapped in a NetworkAntennaServer
@@ -39,71 +44,21 @@ public class NetworkAntennaDevice extends EventEmitterImpl<AntennaEvent> impleme
         new Thread(this, "Read loop").start();
     }
 
-    private void read(int length) throws IOException {
-        readBuffer.clear();
-
-        try {
-            readBuffer.limit(length);
-        } catch (IllegalArgumentException e) {
-            System.out.println(length);
-        }
-
-        client.read(readBuffer);
-        readBuffer.flip();
-    }
-
-    private AntennaEvent readEvent() throws IOException {
-        read(1);
-        byte code = readBuffer.get();
-        read(4);
-        int time = readBuffer.getInt();
-
-        AntennaEvent.Type type = AntennaEvent.Type.fromCode(code);
-        int length = type.getLength();
-        byte[] data;
-
-        if (length == 0) {
-            data = new byte[0];
-            read(1);
-        } else {
-            switch (type) {
-                case COMMAND_ISSUED:
-                    read(1);
-                    byte code2 = readBuffer.get();
-                    int code2length = AntennaCommand.Type.fromCode(code2).getLength();
-                    data = new byte[1 + code2length];
-                    data[0] = code2;
-
-                    read(code2length + 1);
-                    readBuffer.get(data, 1, code2length);
-                    break;
-                case MEASUREMENT:
-                    read(4);
-                    int count = readBuffer.getInt();
-                    readBuffer.rewind();
-                    data = new byte[Integer.BYTES + count * Float.BYTES];
-                    readBuffer.get(data, 0, Integer.BYTES);
-
-                    read(1 + count * Float.BYTES);
-                    readBuffer.get(data, Integer.BYTES, count * Float.BYTES);
-                    break;
-                default:
-                    data = new byte[length];
-                    read(length + 1);
-                    readBuffer.get(data);
-            }
-        }
-
-        return new AntennaEvent(type, time, data);
-    }
-
     @Override
     public void run() {
         while (!Thread.currentThread().isInterrupted() && client.isConnected()) {
             try {
-                AntennaEvent event = readEvent();
+                // Read as much as is available, then dispatch every complete frame in the buffer.
+                // A partial frame stays in the buffer until the rest of it arrives.
+                if (frames.fill(client) == -1) {
+                    System.out.println("Connection closed by server");
+                    break;
+                }
 
-                sendEvent(event);
+                AntennaEvent event;
+                while ((event = frames.next()) != null) {
+                    sendEvent(event);
+                }
             } catch (IOException e) {
                 System.out.println("Connection closed because of error or forced close");
                 break;
@@ -113,18 +68,26 @@ public class NetworkAntennaDevice extends EventEmitterImpl<AntennaEvent> impleme
 
     @Override
     public void submitCommand(AntennaCommand command) {
-        if (writeBuffer.position() > 0) {
-            writeBuffer.compact();
-        }
+        // Commands come from scripts, schedulers and the controller at once; each frame goes out whole
+        synchronized (WRITE_MONITOR) {
+            // frame + newline
+            int frameLength = command.getFrameLength() + 1;
+            if (frameLength > writeBuffer.capacity()) {
+                writeBuffer = ByteBuffer.allocate(Math.max(frameLength, writeBuffer.capacity() * 2));
+            }
 
-        writeBuffer.put(command.toByteBuffer());
-        writeBuffer.put((byte) 0x0A);
-        writeBuffer.flip();
+            writeBuffer.clear();
+            command.writeTo(writeBuffer);
+            writeBuffer.put((byte) 0x0A);
+            writeBuffer.flip();
 
-        try {
-            client.write(writeBuffer);
-        } catch (IOException e) {
-            e.printStackTrace();
+            try {
+                while (writeBuffer.hasRemaining()) {
+                    client.write(writeBuffer);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 }
\ No newline at end of file
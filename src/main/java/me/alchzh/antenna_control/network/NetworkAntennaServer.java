@@ -8,26 +8,60 @@ import me.alchzh.antenna_control.mock_device.MockAntennaDevice;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.Buffer;
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.EventListener;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static me.alchzh.antenna_control.util.Units.u;
 
 /**
  * A server that wraps an AntennaDevice to communicate over a TCP socket
+ * Any number of clients may connect. Commands from every client are submitted to the device and every
+ * event is fanned out to every connected client.
+ * <p>
+ * One server can also serve many devices, each on its own port, from the same selector thread (see bind), which
+ * is how a farm of simulated devices is served.
+ * <p>
+ * Correlation ids of tagged commands are only unique per client, so the server gives every tagged command an id of
+ * its own. The client that sent the command gets the responses back with its own id; every other client gets them
+ * untagged.
  */
-public class NetworkAntennaServer implements EventEmitter.Listener<AntennaEvent> {
+public class NetworkAntennaServer {
+    /**
+     * Number of recent tagged commands whose sender is remembered per device. Must be a power of two.
+     */
+    private static final int TAG_SLOTS = 1024;
+
     private final AntennaDevice device;
 
-    private ServerSocketChannel serverSocket;
-    private SocketChannel client;
+    private final Selector selector;
 
-    private final ByteBuffer writeBuffer = ByteBuffer.allocate(2048);
-    private final ByteBuffer readBuffer = ByteBuffer.allocate(2048);
+    private final List<Endpoint> endpoints = new CopyOnWriteArrayList<>();
+    /**
+     * Endpoints bound but not yet registered with the selector, registered by the selector thread on its next pass
+     */
+    private final Queue<Endpoint> newEndpoints = new ConcurrentLinkedQueue<>();
+    /**
+     * Sessions with pending output, flushed by the selector thread on its next pass
+     */
+    private final Queue<ClientSession> dirtySessions = new ConcurrentLinkedQueue<>();
+    /**
+     * Types for which a lagging client only gets the newest unsent event
+     */
+    private volatile Set<AntennaEvent.Type> conflatedTypes = EnumSet.of(AntennaEvent.Type.CURRENT_STATE);
 
     /**
      * Wraps a device to serve over a network
@@ -37,9 +71,17 @@ public class NetworkAntennaServer implements EventEmitter.Listener<AntennaEvent>
      */
     public NetworkAntennaServer(AntennaDevice device) throws IOException {
         this.device = device;
-        device.addEventListener(this);
 
-        serverSocket = ServerSocketChannel.open();
+        selector = Selector.open();
+    }
+
+    /**
+     * Creates a server with no device of its own, for devices added with bind
+     *
+     * @throws IOException On any IOException
+     */
+    public NetworkAntennaServer() throws IOException {
+        this(null);
     }
 
     /**
@@ -55,99 +97,272 @@ public class NetworkAntennaServer implements EventEmitter.Listener<AntennaEvent>
         server.listen("127.0.0.1", 52532);
     }
 
+    /**
+     * Listen on the specified host and port
+     * Runs the selector loop on the calling thread until the server is closed
+     *
+     * @param host Host to bind to
+     * @param port Port to listen on
+     */
+    public void listen(String host, int port) {
+        try {
+            bind(device, host, port);
+        } catch (IOException e) {
+            System.out.println("Server closed because of error or forced close");
+            e.printStackTrace();
+            return;
+        }
 
-    private void read(int length) throws IOException {
-        readBuffer.clear();
-        readBuffer.limit(length);
-
-        client.read(readBuffer);
-        readBuffer.flip();
+        run();
     }
 
-    private AntennaCommand readCommand() throws IOException {
-        read(1);
-        byte code = readBuffer.get();
-
-        AntennaCommand.Type type = AntennaCommand.Type.fromCode(code);
-        int length = type.getLength();
-        byte[] data;
-
-        if (length == 0) {
-            data = new byte[0];
-            read(1);
-        } else if (length == -1) {
-            read(1);
-            byte code2 = readBuffer.get();
-            int code2length = AntennaEvent.Type.fromCode(code2).getLength();
-            data = new byte[1 + code2length];
-            data[0] = code2;
-
-            read(code2length + 1);
-            readBuffer.get(data, 1, code2length);
-        } else {
-            data = new byte[length];
-            read(length + 1);
-            readBuffer.get(data);
+    /**
+     * Serves a device on its own port. May be called before run or while it is running.
+     *
+     * @param device Device to serve
+     * @param host   Host to bind to
+     * @param port   Port to listen on
+     * @throws IOException If the port can't be bound
+     */
+    public void bind(AntennaDevice device, String host, int port) throws IOException {
+        ServerSocketChannel serverSocket = ServerSocketChannel.open();
+
+        try {
+            serverSocket.socket().bind(new InetSocketAddress(host, port));
+            serverSocket.configureBlocking(false);
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
         }
 
-        return new AntennaCommand(type, data);
+        Endpoint endpoint = new Endpoint(device, serverSocket);
+        endpoints.add(endpoint);
+        device.addEventListener(endpoint);
+
+        newEndpoints.add(endpoint);
+        selector.wakeup();
+        System.out.printf("Listening on... %s:%d\n", host, port);
     }
 
     /**
-     * Listen on the specified host and port
-     * At the moment, accepts only one client connection and reads command by command
-     *
-     * @param host Host to bind to
-     * @param port Port to listen on
+     * Runs the selector loop for every bound device on the calling thread until the server is closed
      */
-    public void listen(String host, int port) {
+    public void run() {
         try {
-            serverSocket.socket().bind(new InetSocketAddress(host, port));
-            System.out.printf("Listening on... %s:%d\n", host, port);
-            client = serverSocket.accept();
-            System.out.printf("Client obtained %s\n", client.getRemoteAddress());
+            while (selector.isOpen()) {
+                Endpoint endpoint;
+                while ((endpoint = newEndpoints.poll()) != null) {
+                    endpoint.serverSocket.register(selector, SelectionKey.OP_ACCEPT, endpoint);
+                }
 
-            while (client.isConnected()) {
-                AntennaCommand command = readCommand();
-                System.out.println(command);
+                ClientSession dirty;
+                while ((dirty = dirtySessions.poll()) != null) {
+                    flush(dirty);
+                }
 
-                device.submitCommand(command);
+                selector.select();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept((Endpoint) key.attachment());
+                        continue;
+                    }
+
+                    ClientSession session = (ClientSession) key.attachment();
+
+                    if (key.isWritable()) {
+                        flush(session);
+                    }
+
+                    if (key.isValid() && key.isReadable()) {
+                        read(session);
+                    }
+                }
             }
+        } catch (ClosedSelectorException e) {
+            System.out.println("Server closed");
         } catch (IOException e) {
             System.out.println("Server closed because of error or forced close");
             e.printStackTrace();
         }
     }
 
-    public void close() throws IOException {
-        device.removeEventListener(this);
-        device.submitCommand(AntennaCommand.Type.POWEROFF);
+    private void accept(Endpoint endpoint) throws IOException {
+        SocketChannel client = endpoint.serverSocket.accept();
+        if (client == null) return;
 
-        if (client != null) {
-            client.close();
-        }
+        client.configureBlocking(false);
+        SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+        ClientSession session = new ClientSession(client, key, endpoint);
+        key.attach(session);
 
-        serverSocket.close();
+        endpoint.sessions.add(session);
+        System.out.printf("Client obtained %s\n", session);
     }
 
-    @Override
-    public void eventOccurred(AntennaEvent event) {
-        if (writeBuffer.position() > 0) {
-            writeBuffer.compact();
-        }
-
+    private void read(ClientSession session) {
         try {
-            writeBuffer.put(event.toArray());
-            writeBuffer.put((byte) 0x0A);
-        } catch (BufferOverflowException e) {
-            e.printStackTrace();
+            if (!session.read()) {
+                drop(session, "Client disconnected");
+            }
+        } catch (IOException e) {
+            drop(session, "Connection closed because of error: " + e.getMessage());
         }
-        writeBuffer.flip();
+    }
 
+    private void flush(ClientSession session) {
         try {
-            client.write(writeBuffer);
+            session.flush();
         } catch (IOException e) {
-            e.printStackTrace();
+            drop(session, "Connection closed because of error: " + e.getMessage());
+        }
+    }
+
+    private void drop(ClientSession session, String reason) {
+        System.out.printf("%s %s\n", reason, session);
+        session.close();
+    }
+
+    public void close() throws IOException {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.close();
+        }
+        endpoints.clear();
+
+        selector.close();
+    }
+
+    /**
+     * Sets the event types for which a client that hasn't received the last one yet only gets the newest
+     * (CURRENT_STATE by default)
+     *
+     * @param conflatedTypes Types to conflate
+     */
+    public void setConflatedTypes(Set<AntennaEvent.Type> conflatedTypes) {
+        this.conflatedTypes = conflatedTypes.isEmpty()
+                ? EnumSet.noneOf(AntennaEvent.Type.class)
+                : EnumSet.copyOf(conflatedTypes);
+    }
+
+    /**
+     * @param event Event to encode
+     * @return Frame (event and newline) ready to be read
+     */
+    private static ByteBuffer encode(AntennaEvent event) {
+        ByteBuffer frame = ByteBuffer.allocate(event.getFrameLength() + 1);
+        event.writeTo(frame);
+        frame.put((byte) 0x0A);
+        frame.flip();
+
+        return frame;
+    }
+
+    /**
+     * A device served on one port and the clients connected to it
+     */
+    private final class Endpoint implements EventEmitter.Listener<AntennaEvent>, ClientSession.CommandHandler {
+        private final AntennaDevice device;
+        private final ServerSocketChannel serverSocket;
+        private final Set<ClientSession> sessions = ConcurrentHashMap.newKeySet();
+
+        private final AtomicInteger lastTag = new AtomicInteger();
+        /**
+         * Sender of each recent tagged command, indexed by the low bits of the server id
+         */
+        private final AtomicReferenceArray<Tag> tags = new AtomicReferenceArray<>(TAG_SLOTS);
+
+        private Endpoint(AntennaDevice device, ServerSocketChannel serverSocket) {
+            this.device = device;
+            this.serverSocket = serverSocket;
+        }
+
+        @Override
+        public void commandReceived(ClientSession session, AntennaCommand command) {
+            System.out.println(command);
+
+            if (command.id != 0) {
+                int serverId;
+                do {
+                    serverId = lastTag.incrementAndGet();
+                } while (serverId == 0);
+
+                tags.set(serverId & (TAG_SLOTS - 1), new Tag(serverId, session, command.id));
+                command = command.withId(serverId);
+            }
+
+            device.submitCommand(command);
+        }
+
+        @Override
+        public void sessionClosed(ClientSession session) {
+            sessions.remove(session);
+        }
+
+        @Override
+        public void eventOccurred(AntennaEvent event) {
+            if (sessions.isEmpty()) return;
+
+            // Encode once; every session queues its own view of the same frame
+            ByteBuffer frame = encode(event.withId(0));
+
+            ClientSession owner = null;
+            ByteBuffer ownerFrame = null;
+
+            if (event.id != 0) {
+                Tag tag = tags.get(event.id & (TAG_SLOTS - 1));
+
+                if (tag != null && tag.serverId == event.id) {
+                    owner = tag.session;
+                    ownerFrame = encode(event.withId(tag.clientId));
+                }
+            }
+
+            boolean conflate = conflatedTypes.contains(event.type);
+
+            for (ClientSession session : sessions) {
+                ByteBuffer sessionFrame = session == owner ? ownerFrame : frame;
+
+                if (conflate ? session.enqueueLatest(event.type, sessionFrame) : session.enqueue(sessionFrame)) {
+                    dirtySessions.add(session);
+                } else {
+                    System.out.printf("Dropped %s for lagging client %s\n", event.type, session);
+                }
+            }
+
+            selector.wakeup();
+        }
+
+        private void close() throws IOException {
+            device.removeEventListener(this);
+            device.submitCommand(AntennaCommand.Type.POWEROFF);
+
+            for (ClientSession session : sessions) {
+                session.close();
+            }
+            sessions.clear();
+
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * A tagged command as the server submitted it to the device
+     */
+    private static final class Tag {
+        private final int serverId;
+        private final ClientSession session;
+        private final int clientId;
+
+        private Tag(int serverId, ClientSession session, int clientId) {
+            this.serverId = serverId;
+            this.session = session;
+            this.clientId = clientId;
         }
     }
 }
@@ -0,0 +1,430 @@
+package me.alchzh.antenna_control.replay;
+
+import me.alchzh.antenna_control.device.AntennaDevice;
+import me.alchzh.antenna_control.device.AntennaEvent;
+import me.alchzh.antenna_control.device.AntennaEventView;
+import me.alchzh.antenna_control.device.EventEmitter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An append-only journal of events in segmented, memory-mapped files
+ * <p>
+ * Every record is the event frame exactly as on the wire (with its tag, if any) and the time it was received:
+ * <pre>
+ * int length | long receive time (ns since the epoch) | frame
+ * </pre>
+ * The length is written last, so a record is either complete or reads as the end of the journal. Appending is a
+ * copy into mapped memory, so it never blocks on the disk, and whatever was appended survives a crash of the
+ * process because the pages belong to the OS. A background thread forces the pages to disk every flush interval
+ * (for power loss) and maps the next segment before it is needed.
+ * <p>
+ * Segments are named name-0000000000.journal, name-0000000001.journal, ... in the journal directory. Opening a
+ * journal that already has segments continues after the last one.
+ */
+public class EventJournal implements EventEmitter.Listener<AntennaEvent>, Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    private static final int MAGIC = 0x414A4E4C; // "AJNL"
+    private static final int VERSION = 1;
+    private static final int SEGMENT_HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int RECORD_HEADER_BYTES = Integer.BYTES + Long.BYTES;
+    /**
+     * Length of the filler record that ends a segment early
+     */
+    private static final int END_OF_SEGMENT = -1;
+
+    private final Path directory;
+    private final String name;
+    private final int segmentSize;
+    private final long flushIntervalNanos;
+
+    private final long baseEpochNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    private final long baseNanoTime = System.nanoTime();
+
+    private final Thread flusher;
+    private volatile boolean closed = false;
+    private AntennaDevice device;
+
+    /*
+     * Guarded by this
+     */
+    private MappedByteBuffer segment;
+    private int segmentIndex;
+    private long appended = 0;
+    /**
+     * Segments filled but not yet forced to disk
+     */
+    private final List<MappedByteBuffer> filled = new ArrayList<>();
+    /**
+     * Segment mapped ahead of time by the flusher, or null
+     */
+    private MappedByteBuffer nextSegment;
+    /**
+     * Index the flusher is mapping ahead outside the lock, or -1
+     */
+    private int aheadIndex = -1;
+
+    /**
+     * Opens a journal with 64 MB segments flushed every second
+     *
+     * @param directory Directory of the segments
+     * @param name      Name the segments start with
+     * @throws IOException If the first segment can't be created
+     */
+    public EventJournal(Path directory, String name) throws IOException {
+        this(directory, name, DEFAULT_SEGMENT_SIZE, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param directory     Directory of the segments
+     * @param name          Name the segments start with
+     * @param segmentSize   Size of every segment in bytes. Larger events get a segment of their own.
+     * @param flushInterval Longest time appended events stay only in memory
+     * @param unit          Unit of flushInterval
+     * @throws IOException If the first segment can't be created
+     */
+    public EventJournal(Path directory, String name, int segmentSize, long flushInterval, TimeUnit unit)
+            throws IOException {
+        if (segmentSize < SEGMENT_HEADER_BYTES + RECORD_HEADER_BYTES) {
+            throw new IllegalArgumentException("Segment size too small");
+        }
+
+        this.directory = directory;
+        this.name = name;
+        this.segmentSize = segmentSize;
+        this.flushIntervalNanos = unit.toNanos(flushInterval);
+
+        Files.createDirectories(directory);
+
+        List<Path> existing = segments(directory, name);
+        segmentIndex = existing.isEmpty() ? 0 : indexOf(existing.get(existing.size() - 1), name) + 1;
+        segment = map(segmentIndex, segmentSize);
+
+        flusher = new Thread(this::runFlusher, "eventJournal");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Journals every event of a device until the journal is closed
+     *
+     * @param device    Device to journal
+     * @param directory Directory of the segments
+     * @param name      Name the segments start with
+     * @return The journal
+     * @throws IOException If the first segment can't be created
+     */
+    public static EventJournal tap(AntennaDevice device, Path directory, String name) throws IOException {
+        EventJournal journal = new EventJournal(directory, name);
+        journal.device = device;
+        device.addEventListener(journal);
+
+        return journal;
+    }
+
+    @Override
+    public void eventOccurred(AntennaEvent event) {
+        append(event, baseEpochNanos + (System.nanoTime() - baseNanoTime));
+    }
+
+    /**
+     * Appends an event
+     *
+     * @param event       Event to append
+     * @param receiveTime Time it was received, in nanoseconds since the epoch
+     */
+    public void append(AntennaEvent event, long receiveTime) {
+        int length = event.getFrameLength();
+
+        synchronized (this) {
+            if (closed) return;
+
+            try {
+                if (segment.remaining() < RECORD_HEADER_BYTES + length) {
+                    roll(length);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            int start = segment.position();
+            segment.position(start + Integer.BYTES);
+            segment.putLong(receiveTime);
+            event.writeTo(segment);
+
+            // Commits the record
+            segment.putInt(start, length);
+            appended++;
+        }
+    }
+
+    /**
+     * Ends the current segment and moves to the next one. Guarded by this.
+     *
+     * @param length Length of the frame that has to fit
+     */
+    private void roll(int length) throws IOException {
+        int needed = SEGMENT_HEADER_BYTES + RECORD_HEADER_BYTES + length;
+        MappedByteBuffer next;
+        int nextIndex;
+
+        if (nextSegment != null && needed <= segmentSize) {
+            next = nextSegment;
+            nextIndex = segmentIndex + 1;
+        } else {
+            // Skip an index mapped ahead (too small for this event, left empty) or still being mapped ahead
+            nextIndex = segmentIndex + (nextSegment != null || aheadIndex == segmentIndex + 1 ? 2 : 1);
+            next = map(nextIndex, Math.max(segmentSize, needed));
+        }
+
+        // Nothing changes until the next segment is mapped, so a failed roll can simply be tried again
+        nextSegment = null;
+        if (segment.remaining() >= Integer.BYTES) {
+            segment.putInt(segment.position(), END_OF_SEGMENT);
+        }
+        filled.add(segment);
+        segment = next;
+        segmentIndex = nextIndex;
+
+        LockSupport.unpark(flusher);
+    }
+
+    private MappedByteBuffer map(int index, int size) throws IOException {
+        Path path = directory.resolve(String.format("%s-%010d.journal", name, index));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        try {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+
+            return buffer;
+        } catch (IOException e) {
+            channel.close();
+            // Left behind, the file would make every later attempt at this index fail
+            Files.deleteIfExists(path);
+            throw e;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void runFlusher() {
+        while (!closed) {
+            LockSupport.parkNanos(this, flushIntervalNanos);
+
+            List<MappedByteBuffer> toForce;
+            MappedByteBuffer current;
+            int ahead = -1;
+
+            synchronized (this) {
+                toForce = new ArrayList<>(filled);
+                filled.clear();
+                current = segment;
+
+                if (nextSegment == null && !closed) {
+                    ahead = segmentIndex + 1;
+                    aheadIndex = ahead;
+                }
+            }
+
+            // Mapping the next segment is file I/O, so it is done here without the lock, and appends never wait
+            // for it
+            if (ahead >= 0) {
+                MappedByteBuffer mapped = null;
+                try {
+                    mapped = map(ahead, segmentSize);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+
+                synchronized (this) {
+                    aheadIndex = -1;
+                    // A roll in the meantime went past it, leaving it empty
+                    if (mapped != null && segmentIndex + 1 == ahead) {
+                        nextSegment = mapped;
+                    }
+                }
+            }
+
+            for (MappedByteBuffer buffer : toForce) {
+                buffer.force();
+            }
+            current.force();
+        }
+    }
+
+    /**
+     * @return Number of events appended so far
+     */
+    public synchronized long getAppendedCount() {
+        return appended;
+    }
+
+    /**
+     * Stops journaling and forces everything appended to disk. A segment mapped ahead of time is left empty.
+     */
+    @Override
+    public void close() {
+        if (device != null) {
+            device.removeEventListener(this);
+        }
+
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            for (MappedByteBuffer buffer : filled) {
+                buffer.force();
+            }
+            filled.clear();
+            segment.force();
+        }
+    }
+
+    /**
+     * @return Segments of a journal in order
+     */
+    private static List<Path> segments(Path directory, String name) throws IOException {
+        List<Path> segments = new ArrayList<>();
+
+        if (!Files.isDirectory(directory)) return segments;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, name + "-*.journal")) {
+            for (Path path : stream) {
+                if (indexOf(path, name) >= 0) segments.add(path);
+            }
+        }
+
+        // Fixed width indices sort in order
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static int indexOf(Path segment, String name) {
+        String fileName = segment.getFileName().toString();
+        String index = fileName.substring(name.length() + 1, fileName.length() - ".journal".length());
+
+        try {
+            return Integer.parseInt(index);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads every record of a journal in order, including one still being written or left by a crash
+     */
+    public static class Reader implements Closeable {
+        private final List<Path> segments;
+        private int next = 0;
+        private ByteBuffer segment;
+        private final AntennaEventView view = new AntennaEventView();
+        private long receiveTime;
+
+        /**
+         * @param directory Directory of the segments
+         * @param name      Name the segments start with
+         * @throws IOException If the directory can't be listed
+         */
+        public Reader(Path directory, String name) throws IOException {
+            segments = segments(directory, name);
+        }
+
+        /**
+         * Moves to the next record
+         *
+         * @return false at the end of the journal
+         * @throws IOException If a segment can't be read or isn't a journal segment
+         */
+        public boolean next() throws IOException {
+            while (true) {
+                if (segment == null) {
+                    if (next == segments.size()) return false;
+                    segment = open(segments.get(next++));
+                }
+
+                if (segment.remaining() >= RECORD_HEADER_BYTES) {
+                    int start = segment.position();
+                    int length = segment.getInt(start);
+
+                    if (length > 0 && segment.remaining() >= RECORD_HEADER_BYTES + length) {
+                        receiveTime = segment.getLong(start + Integer.BYTES);
+                        view.wrap(segment, start + RECORD_HEADER_BYTES);
+                        segment.position(start + RECORD_HEADER_BYTES + length);
+                        return true;
+                    }
+                }
+
+                // End of segment, or of what was written of it
+                segment = null;
+            }
+        }
+
+        /**
+         * @return Receive time of the current record in nanoseconds since the epoch
+         */
+        public long getReceiveTime() {
+            return receiveTime;
+        }
+
+        /**
+         * @return View of the current record's frame, valid until next()
+         */
+        public AntennaEventView getView() {
+            return view;
+        }
+
+        /**
+         * @return The current record's event
+         */
+        public AntennaEvent getEvent() {
+            return view.toEvent();
+        }
+
+        @Override
+        public void close() {
+            segment = null;
+        }
+
+        private static ByteBuffer open(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+                if (buffer.remaining() < SEGMENT_HEADER_BYTES || buffer.getInt() != MAGIC) {
+                    throw new IOException("Not a journal segment " + path);
+                }
+                if (buffer.getInt() != VERSION) {
+                    throw new IOException("Unsupported journal version in " + path);
+                }
+
+                return buffer;
+            }
+        }
+    }
+}
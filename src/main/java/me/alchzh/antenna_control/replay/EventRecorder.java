@@ -0,0 +1,221 @@
+package me.alchzh.antenna_control.replay;
+
+import me.alchzh.antenna_control.device.AntennaDevice;
+import me.alchzh.antenna_control.device.AntennaEvent;
+import me.alchzh.antenna_control.device.EventEmitter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the event stream of a device to a file for ReplayAntennaDevice
+ * <p>
+ * The file holds the events exactly as they go over the network: each frame (with its tag, if any) followed by a
+ * newline. The listener only copies the frame into a buffer; full buffers are written by a background thread, so
+ * the device's thread never touches the disk. If the disk falls more than MAX_BUFFERS behind, events are dropped
+ * and counted instead of holding up the device.
+ */
+public class EventRecorder implements EventEmitter.Listener<AntennaEvent>, Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * Most buffers waiting to be written
+     */
+    private static final int MAX_BUFFERS = 256;
+    /**
+     * Longest a partly filled buffer waits before it is written anyway
+     */
+    private static final long FLUSH_INTERVAL = 100;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final FileChannel channel;
+    private final Thread writer;
+    private AntennaDevice device;
+
+    /*
+     * Guarded by this
+     */
+    private ByteBuffer current = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+    private int outstanding = 0;
+    private long recorded = 0;
+    private long dropped = 0;
+    private boolean closed = false;
+
+    /**
+     * Buffers to write, in order
+     */
+    private final BlockingQueue<ByteBuffer> full = new LinkedBlockingQueue<>();
+    private volatile IOException writeError;
+
+    /**
+     * Creates (or truncates) a recording. Add it as a listener to any device, or use tap.
+     *
+     * @param path File to record to
+     * @throws IOException If the file can't be opened
+     */
+    public EventRecorder(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        writer = new Thread(this::runWriter, "eventRecorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records every event of a device until the recorder is closed
+     *
+     * @param device Device to record
+     * @param path   File to record to
+     * @return The recorder
+     * @throws IOException If the file can't be opened
+     */
+    public static EventRecorder tap(AntennaDevice device, Path path) throws IOException {
+        EventRecorder recorder = new EventRecorder(path);
+        recorder.device = device;
+        device.addEventListener(recorder);
+
+        return recorder;
+    }
+
+    @Override
+    public void eventOccurred(AntennaEvent event) {
+        int length = event.getFrameLength() + 1;
+
+        synchronized (this) {
+            if (closed) return;
+
+            if (current.remaining() < length) {
+                if (!rotate(length)) {
+                    dropped++;
+                    return;
+                }
+            }
+
+            event.writeTo(current);
+            current.put((byte) 0x0A);
+            recorded++;
+        }
+    }
+
+    /**
+     * Hands the current buffer to the writer and takes a fresh one. Guarded by this.
+     *
+     * @param length Room the fresh buffer needs
+     * @return false if too many buffers are waiting to be written
+     */
+    private boolean rotate(int length) {
+        if (current.position() > 0) {
+            if (outstanding == MAX_BUFFERS) return false;
+
+            current.flip();
+            full.add(current);
+            outstanding++;
+
+            ByteBuffer next = pool.poll();
+            current = next != null ? next : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        // A frame bigger than a whole buffer gets one of its own, not returned to the pool
+        if (current.capacity() < length) {
+            current = ByteBuffer.allocateDirect(length);
+        }
+
+        return true;
+    }
+
+    private void runWriter() {
+        while (true) {
+            ByteBuffer buffer;
+
+            try {
+                buffer = full.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (buffer == null) {
+                // Quiet device, write what there is so the file stays reasonably current
+                synchronized (this) {
+                    rotate(0);
+                }
+                continue;
+            }
+
+            if (buffer == END) return;
+
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                if (writeError == null) {
+                    e.printStackTrace();
+                    writeError = e;
+                }
+            }
+
+            buffer.clear();
+            synchronized (this) {
+                outstanding--;
+                if (buffer.capacity() == BUFFER_SIZE) pool.add(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return Number of events recorded so far
+     */
+    public synchronized long getRecordedCount() {
+        return recorded;
+    }
+
+    /**
+     * @return Number of events dropped because the disk fell behind
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Stops recording, writes everything recorded and closes the file
+     *
+     * @throws IOException If the file couldn't be written or closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (device != null) {
+            device.removeEventListener(this);
+        }
+
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+
+            // Past the limit too, nothing recorded is dropped on close
+            if (current.position() > 0) {
+                current.flip();
+                full.add(current);
+            }
+            full.add(END);
+        }
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        channel.close();
+
+        if (writeError != null) throw writeError;
+    }
+}
@@ -0,0 +1,160 @@
+package me.alchzh.antenna_control.replay;
+
+import me.alchzh.antenna_control.device.AntennaCommand;
+import me.alchzh.antenna_control.device.AntennaDevice;
+import me.alchzh.antenna_control.device.AntennaEvent;
+import me.alchzh.antenna_control.device.AntennaEventEmitter;
+import me.alchzh.antenna_control.device.EventFrameDecoder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A device that replays an event stream recorded by EventRecorder
+ * <p>
+ * Events are sent in order, paced by their time field: at the recorded pace, N times faster, or as fast as the
+ * listeners take them (ASAP). A time that goes backwards (the recorded device was powered on again) restarts the
+ * pacing from that event. Playback starts on the first POWERON, or with start(). The recording already holds
+ * the device's responses, so every other command is ignored, and fails if submitted with submitCommandAsync.
+ */
+public class ReplayAntennaDevice extends AntennaEventEmitter implements AntennaDevice, Runnable {
+    /**
+     * Speed that sends events without waiting
+     */
+    public static final double ASAP = Double.POSITIVE_INFINITY;
+
+    private final Path path;
+    private volatile double speed;
+    private final EventFrameDecoder frames = new EventFrameDecoder(1 << 16);
+
+    private Thread thread;
+    private final CompletableFuture<Long> completion = new CompletableFuture<>();
+
+    /**
+     * @param path  Recording to replay
+     * @param speed 1 for the recorded pace, N for N times faster, or ASAP
+     */
+    public ReplayAntennaDevice(Path path, double speed) {
+        this.path = path;
+        setSpeed(speed);
+    }
+
+    /**
+     * Changes the playback speed. Takes effect from the next event.
+     *
+     * @param speed 1 for the recorded pace, N for N times faster, or ASAP
+     */
+    public void setSpeed(double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Speed must be positive");
+        }
+
+        this.speed = speed;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Starts playback on its own thread if it hasn't started yet
+     *
+     * @return Future completed with the number of events sent when playback ends
+     */
+    public synchronized CompletableFuture<Long> start() {
+        if (thread == null) {
+            thread = new Thread(this, "replayAntennaDevice");
+            thread.start();
+        }
+
+        return completion;
+    }
+
+    /**
+     * Stops playback after the current event
+     */
+    public synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void submitCommand(AntennaCommand command) {
+        if (command.type == AntennaCommand.Type.POWERON) {
+            start();
+        }
+    }
+
+    /**
+     * POWERON starts playback and completes with the recorded BASE_TIME. Nothing in the recording answers any
+     * other command, so those fail with UnsupportedOperationException instead of waiting forever.
+     */
+    @Override
+    public CompletableFuture<AntennaEvent> submitCommandAsync(AntennaCommand command) {
+        if (command.type == AntennaCommand.Type.POWERON) {
+            return AntennaDevice.super.submitCommandAsync(command);
+        }
+
+        CompletableFuture<AntennaEvent> future = new CompletableFuture<>();
+        future.completeExceptionally(new UnsupportedOperationException("Replay ignores " + command.type));
+
+        return future;
+    }
+
+    @Override
+    public void run() {
+        long sent = 0;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long baseNanoTime = 0;
+            int baseEventTime = 0;
+            double baseSpeed = 0;
+            boolean based = false;
+
+            while (!Thread.currentThread().isInterrupted()) {
+                AntennaEvent event = frames.next();
+
+                if (event == null) {
+                    if (frames.fill(channel) == -1) break;
+                    continue;
+                }
+
+                double currentSpeed = speed;
+                if (currentSpeed != ASAP) {
+                    // Pace from the first event, again after the recording restarts or the speed changes
+                    if (!based || event.time < baseEventTime || currentSpeed != baseSpeed) {
+                        baseNanoTime = System.nanoTime();
+                        baseEventTime = event.time;
+                        baseSpeed = currentSpeed;
+                        based = true;
+                    }
+
+                    long due = baseNanoTime
+                            + (long) (TimeUnit.MILLISECONDS.toNanos(event.time - baseEventTime) / currentSpeed);
+
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+                        LockSupport.parkNanos(this, wait);
+                    }
+                } else {
+                    based = false;
+                }
+
+                sendEvent(event);
+                sent++;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            completion.completeExceptionally(e);
+            return;
+        }
+
+        completion.complete(sent);
+    }
+}
@@ -0,0 +1,60 @@
+package me.alchzh.antenna_control.util;
+
+/**
+ * Utility class for reading and writing big-endian (network order) values in byte arrays without wrapping
+ * them in a ByteBuffer
+ */
+public class Bytes {
+    private Bytes() {
+    }
+
+    /**
+     * Writes a 4 byte integer
+     *
+     * @param arr   Array to write to
+     * @param index Index of the first byte
+     * @param value Value to write
+     */
+    public static void putInt(byte[] arr, int index, int value) {
+        arr[index] = (byte) (value >>> 24);
+        arr[index + 1] = (byte) (value >>> 16);
+        arr[index + 2] = (byte) (value >>> 8);
+        arr[index + 3] = (byte) value;
+    }
+
+    /**
+     * Reads a 4 byte integer
+     *
+     * @param arr   Array to read from
+     * @param index Index of the first byte
+     * @return The value
+     */
+    public static int getInt(byte[] arr, int index) {
+        return (arr[index] << 24)
+                | ((arr[index + 1] & 0xFF) << 16)
+                | ((arr[index + 2] & 0xFF) << 8)
+                | (arr[index + 3] & 0xFF);
+    }
+
+    /**
+     * Writes a 4 byte float
+     *
+     * @param arr   Array to write to
+     * @param index Index of the first byte
+     * @param value Value to write
+     */
+    public static void putFloat(byte[] arr, int index, float value) {
+        putInt(arr, index, Float.floatToRawIntBits(value));
+    }
+
+    /**
+     * Reads a 4 byte float
+     *
+     * @param arr   Array to read from
+     * @param index Index of the first byte
+     * @return The value
+     */
+    public static float getFloat(byte[] arr, int index) {
+        return Float.intBitsToFloat(getInt(arr, index));
+    }
+}
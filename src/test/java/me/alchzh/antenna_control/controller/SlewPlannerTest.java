@@ -0,0 +1,60 @@
+package me.alchzh.antenna_control.controller;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static me.alchzh.antenna_control.util.Units.u;
+import static org.junit.Assert.assertEquals;
+
+public class SlewPlannerTest {
+    @Test
+    public void scriptRoundTripsThroughCompiler() throws IOException {
+        int n = 50;
+        Random random = new Random(1);
+        int[] az = new int[n];
+        int[] el = new int[n];
+        for (int i = 0; i < n; i++) {
+            az[i] = random.nextInt(u(135));
+            el[i] = random.nextInt(u(70));
+        }
+
+        SlewPlanner planner = new SlewPlanner(u(50 / 1000.0), 0, u(135), 0, u(70));
+        int[] order = planner.plan(0, 0, az, el);
+        String script = planner.toScript(az, el, order);
+
+        // The script must at least compile as a whole
+        new AntennaScript(new BufferedReader(new StringReader(script)));
+
+        List<AntennaScriptInstruction> instructions = new ArrayList<>();
+        for (String line : script.split("\n")) {
+            if (!line.startsWith("#")) instructions.add(new AntennaScriptInstruction(line));
+        }
+        AntennaScriptProgram program = AntennaScriptProgram.compile(instructions);
+
+        assertEquals(n, program.opcodes.length);
+        for (int k = 0; k < n; k++) {
+            assertEquals(AntennaScriptProgram.G0, program.opcodes[k]);
+            assertEquals(az[order[k]], u(program.positionConstants[AntennaScriptProgram.index(program.a[k])]));
+            assertEquals(el[order[k]], u(program.positionConstants[AntennaScriptProgram.index(program.b[k])]));
+        }
+    }
+
+    @Test
+    public void unitsAndDegreesSuffixes() {
+        List<AntennaScriptInstruction> instructions = new ArrayList<>();
+        instructions.add(new AntennaScriptInstruction("G0 1000u 2000U"));
+        instructions.add(new AntennaScriptInstruction("G0 15d 21.5"));
+        AntennaScriptProgram program = AntennaScriptProgram.compile(instructions);
+
+        assertEquals(1000, u(program.positionConstants[AntennaScriptProgram.index(program.a[0])]));
+        assertEquals(2000, u(program.positionConstants[AntennaScriptProgram.index(program.b[0])]));
+        assertEquals(15, program.positionConstants[AntennaScriptProgram.index(program.a[1])], 0);
+        assertEquals(21.5, program.positionConstants[AntennaScriptProgram.index(program.b[1])], 0);
+    }
+}